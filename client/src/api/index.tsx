@@ -172,6 +172,9 @@ const updateCollection = (
 const getScript = (id: number): Promise<Response> =>
   fetch(BASE_PATH + `api/scripts/${id}`);
 
+const getScriptRuns = (id: number, limit = 10, offset = 0): Promise<Response> =>
+  fetch(BASE_PATH + `api/scripts/${id}/runs?limit=${limit}&offset=${offset}`);
+
 const createScript = (collectionId: number, data: ScriptData): Promise<Response> =>
   fetch(BASE_PATH + 'api/scripts', {
     method: 'POST',
@@ -274,5 +277,6 @@ export default {
   createScript,
   deleteScript,
   getScript,
+  getScriptRuns,
   takeScriptOwnership,
 };
@@ -103,6 +103,14 @@ export default function CollectionSettingsTab({
         >
           Trust All
         </Switch>
+        <Switch
+          colorScheme="green"
+          size="md"
+          onChange={(e) => handleWebClientOptionsChanged('http2', e.target.checked)}
+          isChecked={!!settings?.webClientOptions?.http2}
+        >
+          HTTP/2
+        </Switch>
       </div>
     </div>
   );
@@ -68,6 +68,7 @@ type ScriptPanelProps = {
   dispatchCurrentScript: Dispatch<CurrentScriptAction>;
   dispatchCollections: React.Dispatch<CollectionsAction>;
   forceSetScriptResult: React.MutableRefObject<(result: ScriptResult) => void>;
+  onScriptRun: (result: ScriptResult) => void;
 };
 
 function ScriptPanel({
@@ -76,6 +77,7 @@ function ScriptPanel({
   dispatchCurrentScript,
   dispatchCollections,
   forceSetScriptResult,
+  onScriptRun,
 }: ScriptPanelProps) {
   const { colorMode } = useColorMode();
   const toast = useToast();
@@ -115,15 +117,7 @@ function ScriptPanel({
       const res = await api.runScript(currentScript, envName);
       if (res.status !== 200) throw new Error();
       const newResult = await res.json();
-      dispatchCurrentScript({
-        type: CurrentScriptActionType.PATCH_DATA,
-        data: { results: [newResult, ...(currentScript.data.results ?? [])] },
-      });
-      dispatchCollections({
-        type: CollectionsActionType.PATCH_SCRIPT_DATA,
-        id: currentScript.id,
-        data: { results: [newResult, ...(currentScript.data.results ?? [])] },
-      });
+      onScriptRun(newResult);
       if (forceSetScriptResult.current) {
         forceSetScriptResult.current(newResult);
       }
@@ -134,14 +128,7 @@ function ScriptPanel({
     } finally {
       setIsRunning(false);
     }
-  }, [
-    currentScript,
-    dispatchCollections,
-    dispatchCurrentScript,
-    forceSetScriptResult,
-    isRunning,
-    toast,
-  ]);
+  }, [currentScript, forceSetScriptResult, isRunning, onScriptRun, toast]);
 
   const saveScript = useCallback(
     async (script: CurrentScript) => {
@@ -42,6 +42,27 @@ function SettingsTab({
     [dispatchCurrentScript],
   );
 
+  const setJitter = useCallback(
+    (jitter: string) => {
+      const value = parseInt(jitter);
+      dispatchCurrentScript({
+        type: CurrentScriptActionType.PATCH_DATA,
+        data: { jitter: isNaN(value) ? undefined : value },
+      });
+    },
+    [dispatchCurrentScript],
+  );
+
+  const setOverlapPolicy = useCallback(
+    (overlapPolicy: string) => {
+      dispatchCurrentScript({
+        type: CurrentScriptActionType.PATCH_DATA,
+        data: { overlapPolicy },
+      });
+    },
+    [dispatchCurrentScript],
+  );
+
   const setEnabled = useCallback(
     (enabled: boolean) => {
       saveScript({
@@ -129,6 +150,39 @@ function SettingsTab({
             onClick={() => setEnabled(true)}
           />
         </div>
+        <div style={{ display: 'flex', alignItems: 'center', margin: '16px 0 8px 0' }}>
+          <Text fontSize="sm" fontWeight="bold" color="gray.500" mr="2">
+            Scheduling
+          </Text>
+          <Tooltip
+            label="Jitter delays every run by a fixed amount of up to the given seconds to spread out jobs with the same schedule. If a run is still active when the next one is due, skip drops the missed runs while catch up runs once right after."
+            fontSize="md"
+          >
+            <QuestionOutlineIcon color="gray.500" />
+          </Tooltip>
+        </div>
+        <div style={{ display: 'flex' }}>
+          <Input
+            placeholder="Jitter (s)"
+            type="number"
+            min={0}
+            w="120px"
+            mr="2"
+            size="sm"
+            backgroundColor={colorMode === 'light' ? 'white' : undefined}
+            value={currentScript.data.jitter ?? ''}
+            onChange={(e) => setJitter(e.target.value)}
+          />
+          <Select
+            size="sm"
+            w="150px"
+            onChange={(e) => setOverlapPolicy(e.target.value)}
+            value={currentScript.data.overlapPolicy ?? 'skip'}
+          >
+            <option value="skip">Skip</option>
+            <option value="catchUp">Catch up</option>
+          </Select>
+        </div>
       </div>
     </div>
   );
@@ -50,6 +50,10 @@ function ScriptResultsPanel({
     results?.[0],
   );
 
+  useEffect(() => {
+    setSelectedResult(results?.[0]);
+  }, [results]);
+
   useEffect(() => {
     forceSetScriptResult.current = (result) => {
       setSelectedResult(result);
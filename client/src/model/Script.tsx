@@ -12,16 +12,28 @@ interface ScriptData {
   script?: string;
   selectedEnvName?: string;
   enabled?: boolean;
+  jitter?: number;
+  overlapPolicy?: 'skip' | 'catchUp';
   lastRun?: number;
-  results?: ScriptResult[];
+  lastResult?: ScriptRunSummary;
+}
+
+interface ScriptRunSummary {
+  id: number;
+  success?: boolean;
+  executionTime?: number;
+  envName?: string;
+  error?: string;
 }
 
 interface ScriptResult {
+  id?: number;
   success?: boolean;
   executionTime?: number;
   jasmineReport?: JasmineReport;
   logs?: ScriptLog[];
   error?: string;
+  timings?: Record<string, number>;
 }
 
 interface ScriptLog {
@@ -83,6 +95,7 @@ export type {
   ScriptData,
   ScriptLog,
   ScriptResult,
+  ScriptRunSummary,
   SidebarScript,
 };
 
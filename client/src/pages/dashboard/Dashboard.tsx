@@ -172,6 +172,7 @@ function Dashboard() {
   const [collectionPanelTabIndex, setCollectionPanelTabIndex] = useState(0);
   const [requestPanelTabIndex, setRequestPanelTabIndex] = useState(0);
   const forceSetScriptResult = useRef<(result: ScriptResult) => void>(() => {});
+  const [scriptRuns, setScriptRuns] = useState<ScriptResult[] | undefined>(undefined);
 
   const toast = useToast();
   const sidebarCollections: SidebarCollection[] = useMemo(() => {
@@ -852,7 +853,7 @@ function Dashboard() {
           ...script.data,
           name: newName,
           lastRun: undefined,
-          results: undefined,
+          lastResult: undefined,
         };
         const res = await api.createScript(script.collectionId, newData);
         if (res.status !== 200) throw new Error();
@@ -912,30 +913,33 @@ function Dashboard() {
     [toast, user?.id],
   );
 
+  const fetchScriptRuns = useCallback(async (id: number) => {
+    const res = await api.getScriptRuns(id);
+    if (!res.ok) throw new Error();
+    const runs = await res.json();
+    setScriptRuns(runs.length > 0 ? runs : undefined);
+  }, []);
+
+  useEffect(() => {
+    setScriptRuns(undefined);
+    if (currentScript?.id === undefined) return;
+    fetchScriptRuns(currentScript.id).catch((e) => console.error(e));
+  }, [currentScript?.id, fetchScriptRuns]);
+
   const onRefreshResults = useCallback(async () => {
     if (!currentScript) return;
     try {
-      const res = await api.getScript(currentScript.id);
-      if (!res.ok) {
-        errorToast('Could not fetch script', toast);
-        return;
-      }
-      const newScript = await res.json();
-      dispatchCurrentScript({
-        type: CurrentScriptActionType.PATCH_DATA,
-        data: { results: newScript.data.results },
-      });
-      dispatchCollections({
-        type: CollectionsActionType.PATCH_SCRIPT_DATA,
-        id: newScript.id,
-        data: { results: newScript.data.results },
-      });
+      await fetchScriptRuns(currentScript.id);
       successToast('Refreshed', toast);
     } catch (e) {
       console.error(e);
       errorToast('Could not refresh results', toast);
     }
-  }, [currentScript, toast]);
+  }, [currentScript, fetchScriptRuns, toast]);
+
+  const onScriptRun = useCallback((result: ScriptResult) => {
+    setScriptRuns((runs) => [result, ...(runs ?? [])]);
+  }, []);
 
   useEventListener('message', handlePongMessage);
 
@@ -1005,11 +1009,12 @@ function Dashboard() {
             dispatchCurrentScript={dispatchCurrentScript}
             dispatchCollections={dispatchCollections}
             forceSetScriptResult={forceSetScriptResult}
+            onScriptRun={onScriptRun}
           />
         </div>
         <div className={styles.responsePanel}>
           <ScriptResultsPanel
-            results={currentScript.data?.results}
+            results={scriptRuns}
             onRefreshResults={onRefreshResults}
             forceSetScriptResult={forceSetScriptResult}
           />
@@ -4,7 +4,6 @@ import com.espero.yaade.db.DaoManager;
 import com.espero.yaade.model.db.CollectionDb;
 import org.graalvm.polyglot.HostAccess;
 
-import java.util.List;
 import java.util.Map;
 
 // TODO: check why @HostAccess.Export is not working with kotlin fields
@@ -13,8 +12,6 @@ public class Environment {
     private CollectionDb collection;
     private DaoManager daoManager;
 
-    private List<CollectionDb> parentTree;
-
     private Map<String, String> additionalEnvData;
 
     @HostAccess.Export
@@ -33,31 +30,12 @@ public class Environment {
         if (additionalEnvData.containsKey(key)) {
             return additionalEnvData.get(key);
         }
-        var c = collection;
-        for (var i = 0; i < 10; i++) {
-            if (c == null) {
-                break;
-            }
-            var r = collection.getEnvVar(name, key);
-            if (r != null) {
-                return r;
-            }
-            var parentId = c.jsonData().getLong("parentId");
-            if (parentId == null) {
-                break;
-            }
-            var parentEnvName = c.getParentEnvName(name);
-            if (parentEnvName == null) {
-                break;
-            }
-            var parentCollection = daoManager.getCollectionDao().getById(parentId);
-            if (parentCollection == null) {
-                break;
-            }
-            c = parentCollection;
+        var envData = daoManager.getCollectionDao().getMergedEnvData(collection.getId(), name);
+        if (envData == null) {
+            return null;
         }
-
-        return null;
+        var value = envData.getValue(key);
+        return value == null ? null : value.toString();
     }
 
     @HostAccess.Export
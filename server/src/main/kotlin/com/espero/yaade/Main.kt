@@ -3,13 +3,18 @@ package com.espero.yaade
 import com.espero.yaade.init.createDaoManager
 import com.espero.yaade.server.Server
 import com.espero.yaade.server.utils.configureDatabindCodec
+import com.espero.yaade.services.BackupExporter
+import com.espero.yaade.services.BackupScheduler
 import com.espero.yaade.services.CronScriptRunner
+import com.espero.yaade.services.RequestHistoryWriter
 import com.espero.yaade.services.ScriptRunner
+import com.espero.yaade.services.WebsocketRecorder
 import io.vertx.core.DeploymentOptions
 import io.vertx.core.ThreadingModel
 import io.vertx.core.Vertx
 import io.vertx.core.http.HttpServerOptions.DEFAULT_MAX_HEADER_SIZE
 import io.vertx.ext.web.handler.BodyHandler.DEFAULT_BODY_LIMIT
+import java.util.*
 
 val PORT = System.getenv("YAADE_PORT")?.toInt() ?: 9339
 val JDBC_URL = System.getenv("YAADE_JDBC_URL") ?: "jdbc:h2:file:./app/data/yaade-db"
@@ -18,21 +23,91 @@ val JDBC_PWD = System.getenv("YAADE_JDBC_PASSWORD") ?: ""
 val ADMIN_USERNAME: String = System.getenv("YAADE_ADMIN_USERNAME") ?: ""
 val BASE_PATH: String = System.getenv("YAADE_BASE_PATH") ?: ""
 val FILE_STORAGE_PATH: String = System.getenv("YAADE_FILE_STORAGE_PATH") ?: "./app/data/files"
+val YAADE_FILE_GC_INTERVAL: Long =
+    System.getenv("YAADE_FILE_GC_INTERVAL")?.toLong() ?: 60 * 60 * 1000
 val SCRIPT_RUNNER_TIMEOUT: Long = System.getenv("YAADE_SCRIPT_RUNNER_TIMEOUT")?.toLong() ?: 30_000
+val YAADE_SCRIPT_STATEMENT_LIMIT: Long =
+    System.getenv("YAADE_SCRIPT_STATEMENT_LIMIT")?.toLong() ?: 100_000_000
+val YAADE_SCRIPT_STRICT_STATEMENT_LIMIT: Long =
+    System.getenv("YAADE_SCRIPT_STRICT_STATEMENT_LIMIT")?.toLong() ?: 10_000_000
+val YAADE_SCRIPT_STRICT_TIMEOUT: Long =
+    System.getenv("YAADE_SCRIPT_STRICT_TIMEOUT")?.toLong() ?: 10_000
+val YAADE_SCRIPT_MAX_HEAP_MEMORY: String? = System.getenv("YAADE_SCRIPT_MAX_HEAP_MEMORY")
 val YAADE_SERVER_BODY_LIMIT: Long =
     System.getenv("YAADE_SERVER_BODY_LIMIT")?.toLong() ?: DEFAULT_BODY_LIMIT
 val YAADE_SERVER_MAX_HEADER_SIZE: Int =
     System.getenv("YAADE_SERVER_MAX_HEADER_SIZE")?.toInt() ?: DEFAULT_MAX_HEADER_SIZE
+val YAADE_HISTORY_ENABLED: Boolean =
+    System.getenv("YAADE_HISTORY_ENABLED")?.toBoolean() ?: true
+val YAADE_HISTORY_MAX_ENTRIES_PER_REQUEST: Int =
+    System.getenv("YAADE_HISTORY_MAX_ENTRIES_PER_REQUEST")?.toInt() ?: 20
+val YAADE_HISTORY_MAX_BODY_SIZE: Int =
+    System.getenv("YAADE_HISTORY_MAX_BODY_SIZE")?.toInt() ?: 256 * 1024
+val YAADE_JOB_SCRIPT_RUNS_MAX_AGE: Long =
+    (System.getenv("YAADE_JOB_SCRIPT_RUNS_MAX_AGE_DAYS")?.toLong() ?: 30) * 24 * 60 * 60 * 1000
+val YAADE_CRON_MAX_CONCURRENT_RUNS: Int =
+    System.getenv("YAADE_CRON_MAX_CONCURRENT_RUNS")?.toInt() ?: 8
+val YAADE_CRON_MAX_CONCURRENT_RUNS_PER_OWNER: Int =
+    System.getenv("YAADE_CRON_MAX_CONCURRENT_RUNS_PER_OWNER")?.toInt() ?: 4
+val YAADE_CRON_JITTER: Int = System.getenv("YAADE_CRON_JITTER")?.toInt() ?: 0
+val YAADE_CRON_CLUSTER_MODE: Boolean =
+    System.getenv("YAADE_CRON_CLUSTER_MODE")?.toBoolean() ?: false
+val YAADE_NODE_ID: String = System.getenv("YAADE_NODE_ID") ?: UUID.randomUUID().toString()
+val YAADE_ACCESS_TOKEN_CACHE_TTL: Long =
+    System.getenv("YAADE_ACCESS_TOKEN_CACHE_TTL")?.toLong() ?: 30_000
+val YAADE_ACCESS_TOKEN_RATE_LIMIT: Int =
+    System.getenv("YAADE_ACCESS_TOKEN_RATE_LIMIT")?.toInt() ?: 120
+val YAADE_ACCESS_TOKEN_MAX_CONCURRENT_RUNS: Int =
+    System.getenv("YAADE_ACCESS_TOKEN_MAX_CONCURRENT_RUNS")?.toInt() ?: 2
+val YAADE_BACKUP_CRON: String = System.getenv("YAADE_BACKUP_CRON") ?: ""
+val YAADE_BACKUP_PATH: String = System.getenv("YAADE_BACKUP_PATH") ?: "./app/data/backups"
+val YAADE_BACKUP_RETENTION: Int = System.getenv("YAADE_BACKUP_RETENTION")?.toInt() ?: 7
+val YAADE_BACKUP_MAX_AGE: Long =
+    (System.getenv("YAADE_BACKUP_MAX_AGE_DAYS")?.toLong() ?: 30) * 24 * 60 * 60 * 1000
+val YAADE_PASSWORD_HASH_THREADS: Int =
+    System.getenv("YAADE_PASSWORD_HASH_THREADS")?.toInt() ?: 2
+val YAADE_PASSWORD_HASH_QUEUE_SIZE: Int =
+    System.getenv("YAADE_PASSWORD_HASH_QUEUE_SIZE")?.toInt() ?: 32
+val YAADE_LOGIN_MAX_FAILED_ATTEMPTS: Int =
+    System.getenv("YAADE_LOGIN_MAX_FAILED_ATTEMPTS")?.toInt() ?: 10
+val YAADE_LOGIN_LOCKOUT: Long = System.getenv("YAADE_LOGIN_LOCKOUT")?.toLong() ?: 5 * 60 * 1000
+val YAADE_WS_RELAY_MAX_QUEUE_SIZE: Int =
+    System.getenv("YAADE_WS_RELAY_MAX_QUEUE_SIZE")?.toInt() ?: 1024 * 1024
+val YAADE_WS_RELAY_DROP_ON_OVERFLOW: Boolean =
+    System.getenv("YAADE_WS_RELAY_DROP_ON_OVERFLOW")?.toBoolean() ?: false
+val YAADE_WS_BATCH_WINDOW: Long = System.getenv("YAADE_WS_BATCH_WINDOW")?.toLong() ?: 0
+val YAADE_WS_RECORDING_PATH: String =
+    System.getenv("YAADE_WS_RECORDING_PATH") ?: "./app/data/ws-recordings"
+val YAADE_WS_RECORDING_MAX_SIZE: Long =
+    System.getenv("YAADE_WS_RECORDING_MAX_SIZE")?.toLong() ?: 16 * 1024 * 1024
+val YAADE_WS_MAX_CHANNELS: Int = System.getenv("YAADE_WS_MAX_CHANNELS")?.toInt() ?: 16
+val YAADE_WS_CLIENT_MAX_CONNECTIONS: Int =
+    System.getenv("YAADE_WS_CLIENT_MAX_CONNECTIONS")?.toInt() ?: 500
 
 fun main() {
     configureDatabindCodec()
     val daoManager = createDaoManager(JDBC_URL, JDBC_USR, JDBC_PWD)
 
     val vertx = Vertx.vertx()
-    vertx.deployVerticle(Server(PORT, daoManager))
+    // NOTE: one exporter is shared by manual and scheduled backups
+    val backupExporter = BackupExporter(vertx, daoManager)
+    vertx.deployVerticle(Server(PORT, daoManager, backupExporter))
     vertx.deployVerticle(
         CronScriptRunner(daoManager),
         DeploymentOptions().setThreadingModel(ThreadingModel.WORKER)
     )
     vertx.deployVerticle(ScriptRunner(daoManager))
+    vertx.deployVerticle(
+        WebsocketRecorder(daoManager),
+        DeploymentOptions().setThreadingModel(ThreadingModel.WORKER)
+    )
+    if (YAADE_BACKUP_CRON.isNotEmpty()) {
+        vertx.deployVerticle(BackupScheduler(backupExporter))
+    }
+    if (YAADE_HISTORY_ENABLED) {
+        vertx.deployVerticle(
+            RequestHistoryWriter(daoManager),
+            DeploymentOptions().setThreadingModel(ThreadingModel.WORKER)
+        )
+    }
 }
@@ -3,16 +3,43 @@ package com.espero.yaade.db
 import com.j256.ormlite.dao.Dao
 import com.j256.ormlite.dao.DaoManager
 import com.j256.ormlite.support.ConnectionSource
+import com.j256.ormlite.table.DatabaseTableConfig
 import com.j256.ormlite.table.TableUtils
 
 open class BaseDao<T : Any>(connectionSource: ConnectionSource, clazz: Class<T>) {
 
     protected val dao: Dao<T, Long> = DaoManager.createDao(connectionSource, clazz)
+    protected val tableName: String = DatabaseTableConfig.extractTableName(clazz)
 
     init {
         TableUtils.createTableIfNotExists(connectionSource, clazz)
     }
 
+    // NOTE: tables are only created if they do not exist, columns that were added later
+    // are added to existing tables with this
+    fun addColumnIfNotExists(column: String, definition: String) {
+        dao.executeRaw(
+            "ALTER TABLE ${escape(tableName)} ADD COLUMN IF NOT EXISTS ${escape(column)} " +
+                    definition
+        )
+    }
+
+    // NOTE: same name as the index that is created with the table, so it is only created
+    // for tables that existed before the column was indexed
+    fun createIndexIfNotExists(column: String) {
+        val index = "${tableName}_${column}_idx"
+        dao.executeRaw(
+            "CREATE INDEX IF NOT EXISTS ${escape(index)} " +
+                    "ON ${escape(tableName)} (${escape(column)})"
+        )
+    }
+
+    protected fun escape(name: String): String {
+        val sb = StringBuilder()
+        dao.connectionSource.databaseType.appendEscapedEntityName(sb, name)
+        return sb.toString()
+    }
+
     fun getById(id: Long): T? {
         return dao.queryForId(id)
     }
@@ -21,11 +48,11 @@ open class BaseDao<T : Any>(connectionSource: ConnectionSource, clazz: Class<T>)
         dao.create(data)
     }
 
-    fun update(data: T) {
+    open fun update(data: T) {
         dao.update(data)
     }
 
-    fun delete(id: Long) {
+    open fun delete(id: Long) {
         dao.deleteById(id)
     }
 }
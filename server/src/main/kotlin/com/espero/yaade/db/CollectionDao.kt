@@ -4,10 +4,19 @@ import com.espero.yaade.model.db.CollectionDb
 import com.espero.yaade.model.db.UserDb
 import com.j256.ormlite.support.ConnectionSource
 import io.vertx.core.json.JsonObject
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 class CollectionDao(connectionSource: ConnectionSource) :
     BaseDao<CollectionDb>(connectionSource, CollectionDb::class.java) {
 
+    // NOTE: resolving an env walks up to 10 parent collections, so the result is cached
+    // per (collectionId, envName) and dropped as soon as a collection of its chain changes.
+    // Changes made by other instances on the same database are not seen here, so entries
+    // also expire after a short time
+    private val resolvedEnvs = ConcurrentHashMap<String, ResolvedEnv>()
+    private val cacheVersion = AtomicLong(0)
+
     fun getAll(): List<CollectionDb> {
         return dao.queryForAll()
     }
@@ -21,32 +30,98 @@ class CollectionDao(connectionSource: ConnectionSource) :
     }
 
     fun getSecrets(collectionId: Long, envName: String): JsonObject? {
-        val parentTree = mutableListOf<JsonObject>()
+        return resolveEnv(collectionId, envName).secrets.copy()
+    }
+
+    /**
+     * Returns the env data of the collection merged with the data of its parent envs
+     * or null if the collection does not have an env with the given name.
+     */
+    fun getMergedEnvData(collectionId: Long, envName: String): JsonObject? {
+        return resolveEnv(collectionId, envName).data?.copy()
+    }
+
+    private fun resolveEnv(collectionId: Long, envName: String): ResolvedEnv {
+        val key = "$collectionId:$envName"
+        val now = System.currentTimeMillis()
+        val cached = resolvedEnvs[key]
+        if (cached != null && !cached.isExpired(now)) {
+            return cached
+        }
+        val version = cacheVersion.get()
+        val resolved = loadEnv(collectionId, envName, now)
+        // NOTE: do not cache the result if a collection changed while we were loading it.
+        // The version is checked again after the put, an invalidation can happen in between
+        if (cacheVersion.get() == version) {
+            cleanUp(now)
+            resolvedEnvs[key] = resolved
+            if (cacheVersion.get() != version) {
+                resolvedEnvs.remove(key, resolved)
+            }
+        }
+        return resolved
+    }
+
+    private fun cleanUp(now: Long) {
+        if (resolvedEnvs.size < MAX_CACHED_ENVS) {
+            return
+        }
+        resolvedEnvs.values.removeIf { it.isExpired(now) }
+        if (resolvedEnvs.size >= MAX_CACHED_ENVS) {
+            resolvedEnvs.clear()
+        }
+    }
+
+    private fun loadEnv(collectionId: Long, envName: String, now: Long): ResolvedEnv {
+        val chainIds = mutableSetOf<Long>()
+        val dataTree = mutableListOf<JsonObject>()
+        val secretsTree = mutableListOf<JsonObject>()
         var currentCollectionId = collectionId
         var currentEnvName = envName
         var depth = 0
         while (depth < 10) {
+            chainIds.add(currentCollectionId)
             val currentCollection = getById(currentCollectionId) ?: break
             val currentEnv = currentCollection.getEnv(currentEnvName) ?: break
-            parentTree.add(0, currentCollection.getSecrets(currentEnvName) ?: JsonObject())
+            dataTree.add(0, currentEnv.getJsonObject("data") ?: JsonObject())
+            secretsTree.add(0, currentEnv.getJsonObject("secrets") ?: JsonObject())
             currentEnvName = currentEnv.getString("parentEnvName") ?: break
             currentCollectionId = currentCollection.jsonData().getLong("parentId") ?: break
             depth++
         }
 
-        val result = JsonObject()
-        for (s in parentTree) {
+        val data = if (dataTree.isEmpty())
+            null
+        else
+            dataTree.fold(JsonObject()) { acc, json -> acc.mergeIn(json) }
+        val secrets = JsonObject()
+        for (s in secretsTree) {
             for (kv in s) {
-                result.put(kv.key, kv.value)
+                secrets.put(kv.key, kv.value)
             }
         }
-        return result
+        return ResolvedEnv(data, secrets, chainIds, now)
+    }
+
+    private fun invalidate(collectionId: Long) {
+        cacheVersion.incrementAndGet()
+        resolvedEnvs.entries.removeIf { it.value.chainIds.contains(collectionId) }
+    }
+
+    override fun update(data: CollectionDb) {
+        super.update(data)
+        invalidate(data.id)
+    }
+
+    override fun delete(id: Long) {
+        super.delete(id)
+        invalidate(id)
     }
 
     fun updateWithoutSecrets(c: CollectionDb) {
         val oldCollection = getById(c.id)
         if (oldCollection == null) {
-            super.update(c)
+            update(c)
             return
         }
         val oldEnvs = oldCollection.jsonData().getJsonObject("envs") ?: JsonObject()
@@ -63,7 +138,24 @@ class CollectionDao(connectionSource: ConnectionSource) :
 
         data.put("envs", envs)
         c.data = data.encode().toByteArray()
-        super.update(c)
+        update(c)
     }
 
+    private class ResolvedEnv(
+        val data: JsonObject?,
+        val secrets: JsonObject,
+        val chainIds: Set<Long>,
+        private val loadedAt: Long
+    ) {
+
+        fun isExpired(now: Long): Boolean {
+            return now - loadedAt >= ENV_CACHE_TTL
+        }
+    }
+
+    companion object {
+
+        const val ENV_CACHE_TTL = 5_000L
+        const val MAX_CACHED_ENVS = 1_000
+    }
 }
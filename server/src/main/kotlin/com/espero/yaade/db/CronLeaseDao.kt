@@ -0,0 +1,76 @@
+package com.espero.yaade.db
+
+import com.espero.yaade.model.db.CronLeaseDb
+import com.j256.ormlite.support.ConnectionSource
+import java.sql.SQLException
+
+class CronLeaseDao(connectionSource: ConnectionSource) :
+    BaseDao<CronLeaseDb>(connectionSource, CronLeaseDb::class.java) {
+
+    /**
+     * Tries to claim the fire of a script at the given instant for the owner.
+     */
+    fun tryAcquire(scriptId: Long, fireAt: Long, owner: String, ttl: Long): LeaseResult {
+        val now = System.currentTimeMillis()
+        // NOTE: like on a single node, a fire is skipped while another fire is still running
+        val running = dao.queryBuilder().where()
+            .eq("scriptId", scriptId).and()
+            .ne("fireAt", fireAt).and()
+            .eq("completed", false).and()
+            .gt("expiresAt", now)
+            .countOf()
+        if (running > 0) {
+            return LeaseResult.Skipped
+        }
+        try {
+            dao.create(CronLeaseDb(scriptId, fireAt, owner, now + ttl))
+            return LeaseResult.Acquired
+        } catch (e: SQLException) {
+            // NOTE: the lease already exists, take it over if its owner did not finish in time
+        }
+        val updateBuilder = dao.updateBuilder()
+        updateBuilder.updateColumnValue("owner", owner)
+        updateBuilder.updateColumnValue("expiresAt", now + ttl)
+        updateBuilder.where()
+            .eq("scriptId", scriptId).and()
+            .eq("fireAt", fireAt).and()
+            .eq("completed", false).and()
+            .lt("expiresAt", now)
+        if (updateBuilder.update() == 1) {
+            return LeaseResult.Acquired
+        }
+        val lease = dao.queryBuilder().where()
+            .eq("scriptId", scriptId).and()
+            .eq("fireAt", fireAt)
+            .queryForFirst()
+        if (lease == null || lease.completed) {
+            return LeaseResult.Skipped
+        }
+        return LeaseResult.Held(lease.expiresAt)
+    }
+
+    fun complete(scriptId: Long, fireAt: Long, owner: String) {
+        val updateBuilder = dao.updateBuilder()
+        updateBuilder.updateColumnValue("completed", true)
+        updateBuilder.where()
+            .eq("scriptId", scriptId).and()
+            .eq("fireAt", fireAt).and()
+            .eq("owner", owner)
+        updateBuilder.update()
+    }
+
+    fun deleteExpiredBefore(timestamp: Long) {
+        val deleteBuilder = dao.deleteBuilder()
+        deleteBuilder.where().lt("expiresAt", timestamp)
+        deleteBuilder.delete()
+    }
+
+    sealed class LeaseResult {
+
+        object Acquired : LeaseResult()
+
+        object Skipped : LeaseResult()
+
+        class Held(val expiresAt: Long) : LeaseResult()
+    }
+}
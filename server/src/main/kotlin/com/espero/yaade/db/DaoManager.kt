@@ -5,7 +5,7 @@ import com.j256.ormlite.jdbc.DataSourceConnectionSource
 import com.j256.ormlite.misc.TransactionManager
 import com.j256.ormlite.support.ConnectionSource
 import com.zaxxer.hikari.HikariConfig
-import com.zaxxer.hikari.HikariDataSource
+import java.util.concurrent.atomic.AtomicBoolean
 
 class DaoManager {
 
@@ -14,28 +14,91 @@ class DaoManager {
     lateinit var userDao: UserDao
     lateinit var configDao: ConfigDao
     lateinit var certificatesDao: CertificatesDao
-    lateinit var dataSource: HikariDataSource
+    lateinit var dataSource: GatedDataSource
     lateinit var connectionSource: ConnectionSource
     lateinit var fileDao: FileDao
+    lateinit var fileBlobDao: FileBlobDao
     lateinit var jobScriptDao: JobScriptDao
+    lateinit var jobScriptRunDao: JobScriptRunDao
     lateinit var accessTokenDao: AccessTokenDao
+    lateinit var requestHistoryDao: RequestHistoryDao
+    lateinit var cronLeaseDao: CronLeaseDao
+    lateinit var websocketRecordingDao: WebsocketRecordingDao
 
-    fun init(jdbcUrl: String, jdbcUsr: String, jdbcPwd: String) {
+    private val restoring = AtomicBoolean(false)
+    private var migrate: (DaoManager) -> Unit = {}
+
+    // NOTE: migrate is run whenever the daos are created, also after a backup is swapped in,
+    // so an older backup is migrated before it is used
+    fun init(
+        jdbcUrl: String,
+        jdbcUsr: String,
+        jdbcPwd: String,
+        migrate: (DaoManager) -> Unit = {}
+    ) {
+        this.migrate = migrate
         val hikariConfig = HikariConfig()
         hikariConfig.jdbcUrl = jdbcUrl
         hikariConfig.username = jdbcUsr
         hikariConfig.password = jdbcPwd
         hikariConfig.connectionTimeout = 3000
-        dataSource = HikariDataSource(hikariConfig)
+        dataSource = GatedDataSource(hikariConfig)
         connectionSource = DataSourceConnectionSource(dataSource, jdbcUrl)
+        createDaos()
+        migrate(this)
+    }
+
+    private fun createDaos() {
         requestDao = RequestDao(connectionSource)
         collectionDao = CollectionDao(connectionSource)
         userDao = UserDao(connectionSource)
         configDao = ConfigDao(connectionSource)
         certificatesDao = CertificatesDao(connectionSource)
         fileDao = FileDao(connectionSource)
+        fileBlobDao = FileBlobDao(connectionSource)
         jobScriptDao = JobScriptDao(connectionSource)
+        jobScriptRunDao = JobScriptRunDao(connectionSource)
         accessTokenDao = AccessTokenDao(connectionSource)
+        requestHistoryDao = RequestHistoryDao(connectionSource)
+        cronLeaseDao = CronLeaseDao(connectionSource)
+        websocketRecordingDao = WebsocketRecordingDao(connectionSource)
+    }
+
+    // NOTE: set while a backup is imported. Background writers hold back their writes,
+    // they would go to the database that is about to be replaced
+    fun isRestoring(): Boolean {
+        return restoring.get()
+    }
+
+    fun beginRestore(): Boolean {
+        return restoring.compareAndSet(false, true)
+    }
+
+    fun endRestore() {
+        restoring.set(false)
+    }
+
+    // NOTE: the data source stays the same, so everything that holds it or a dao keeps working.
+    // No connections are handed out while the gate is closed, in-flight queries are drained
+    // before the database is shut down and its files are replaced. Returns false if the queries
+    // could not be drained in time, the database is left untouched in that case
+    fun swapDatabase(drainTimeout: Long, replaceFiles: () -> Unit): Boolean {
+        if (!dataSource.closeGate(drainTimeout)) {
+            return false
+        }
+        try {
+            dataSource.connection.use { conn ->
+                conn.createStatement().use { it.execute("SHUTDOWN") }
+            }
+            dataSource.hikariPoolMXBean.softEvictConnections()
+            replaceFiles()
+            DaoManager.clearCache()
+            createDaos()
+            migrate(this)
+        } finally {
+            dataSource.openGate()
+        }
+        return true
     }
 
     fun close() {
@@ -0,0 +1,16 @@
+package com.espero.yaade.db
+
+import com.espero.yaade.model.db.FileBlobDb
+import com.j256.ormlite.support.ConnectionSource
+
+class FileBlobDao(connectionSource: ConnectionSource) :
+    BaseDao<FileBlobDb>(connectionSource, FileBlobDb::class.java) {
+
+    fun getByHash(hash: String): FileBlobDb? {
+        return dao.queryForEq("hash", hash).getOrNull(0)
+    }
+
+    fun getAll(): List<FileBlobDb> {
+        return dao.queryForAll()
+    }
+}
@@ -9,4 +9,20 @@ class FileDao(connectionSource: ConnectionSource) :
     fun getAll(): List<FileDb> {
         return dao.queryForAll()
     }
+
+    fun getByHash(hash: String): List<FileDb> {
+        return dao.queryForEq("hash", hash)
+    }
+
+    fun getWithoutHash(): List<FileDb> {
+        return dao.queryBuilder().where().isNull("hash").query()
+    }
+
+    // NOTE: counted by the database, so the data of the files is not loaded
+    fun countByHash(): Map<String, Int> {
+        val hash = escape("hash")
+        val sql = "SELECT $hash, COUNT(*) FROM ${escape(tableName)} " +
+                "WHERE $hash IS NOT NULL GROUP BY $hash"
+        return dao.queryRaw(sql).results.associate { it[0] to it[1].toInt() }
+    }
 }
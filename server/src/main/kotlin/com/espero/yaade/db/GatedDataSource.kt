@@ -0,0 +1,87 @@
+package com.espero.yaade.db
+
+import com.espero.yaade.server.errors.ServerError
+import com.zaxxer.hikari.HikariConfig
+import com.zaxxer.hikari.HikariDataSource
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.vertx.core.Context
+import java.sql.Connection
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+// NOTE: while the gate is closed, connections are only handed out to the thread that closed
+// it. Event loop threads must never block, they fail right away so that requests are
+// answered with 503. Worker threads wait until the gate is opened again
+class GatedDataSource(config: HikariConfig) : HikariDataSource(config) {
+
+    private val lock = ReentrantLock()
+    private val opened = lock.newCondition()
+    private var owner: Thread? = null
+    private var acquiring = 0
+
+    override fun getConnection(): Connection {
+        lock.withLock {
+            val current = owner
+            if (current != null && current != Thread.currentThread()) {
+                if (Context.isOnEventLoopThread()) {
+                    throw unavailable()
+                }
+                var remaining = TimeUnit.MILLISECONDS.toNanos(MAX_WAIT)
+                while (owner != null) {
+                    if (remaining <= 0) {
+                        throw unavailable()
+                    }
+                    remaining = opened.awaitNanos(remaining)
+                }
+            }
+            acquiring++
+        }
+        try {
+            return super.getConnection()
+        } finally {
+            lock.withLock { acquiring-- }
+        }
+    }
+
+    // NOTE: returns false and opens the gate again if connections are still in use
+    // after the drain timeout
+    fun closeGate(drainTimeout: Long): Boolean {
+        lock.withLock {
+            owner = Thread.currentThread()
+        }
+        val deadline = System.currentTimeMillis() + drainTimeout
+        while (true) {
+            lock.withLock {
+                if (acquiring == 0 && hikariPoolMXBean.activeConnections == 0) {
+                    return true
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                openGate()
+                return false
+            }
+            Thread.sleep(DRAIN_POLL_INTERVAL)
+        }
+    }
+
+    fun openGate() {
+        lock.withLock {
+            owner = null
+            opened.signalAll()
+        }
+    }
+
+    private fun unavailable(): ServerError {
+        return ServerError(
+            HttpResponseStatus.SERVICE_UNAVAILABLE.code(),
+            "A backup is being imported, try again later"
+        )
+    }
+
+    companion object {
+
+        const val DRAIN_POLL_INTERVAL = 10L
+        const val MAX_WAIT = 30_000L
+    }
+}
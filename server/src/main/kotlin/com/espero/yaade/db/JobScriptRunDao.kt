@@ -0,0 +1,67 @@
+package com.espero.yaade.db
+
+import com.espero.yaade.model.db.JobScriptDb
+import com.espero.yaade.model.db.JobScriptRunDb
+import com.j256.ormlite.support.ConnectionSource
+import io.vertx.core.json.JsonObject
+
+class JobScriptRunDao(connectionSource: ConnectionSource) :
+    BaseDao<JobScriptRunDb>(connectionSource, JobScriptRunDb::class.java) {
+
+    fun record(script: JobScriptDb, result: JsonObject, maxAge: Long): JobScriptRunDb {
+        val run = JobScriptRunDb(script.id, script.collectionId, result)
+        dao.create(run)
+        val maxRuns = script.jsonData().getInteger("storeMaxResults") ?: DEFAULT_MAX_RUNS
+        pruneScript(script.id, maxRuns, System.currentTimeMillis() - maxAge)
+        return run
+    }
+
+    fun getForScript(scriptId: Long, limit: Long, offset: Long): List<JobScriptRunDb> {
+        return dao.queryBuilder()
+            .orderBy("createdAt", false)
+            .limit(limit)
+            .offset(offset)
+            .where().eq("scriptId", scriptId)
+            .query()
+    }
+
+    fun pruneScript(scriptId: Long, maxRuns: Int, olderThan: Long) {
+        val deleteBuilder = dao.deleteBuilder()
+        deleteBuilder.where().eq("scriptId", scriptId).and().lt("createdAt", olderThan)
+        deleteBuilder.delete()
+        val ids = dao.queryBuilder()
+            .selectColumns("id")
+            .orderBy("createdAt", false)
+            .where().eq("scriptId", scriptId)
+            .query()
+            .map { it.id }
+        if (ids.size <= maxRuns) {
+            return
+        }
+        dao.deleteIds(ids.subList(maxRuns, ids.size))
+    }
+
+    fun moveToCollection(scriptId: Long, collectionId: Long) {
+        val updateBuilder = dao.updateBuilder()
+        updateBuilder.updateColumnValue("collectionId", collectionId)
+        updateBuilder.where().eq("scriptId", scriptId)
+        updateBuilder.update()
+    }
+
+    fun deleteAllForScript(scriptId: Long) {
+        val deleteBuilder = dao.deleteBuilder()
+        deleteBuilder.where().eq("scriptId", scriptId)
+        deleteBuilder.delete()
+    }
+
+    fun deleteAllInCollection(collectionId: Long) {
+        val deleteBuilder = dao.deleteBuilder()
+        deleteBuilder.where().eq("collectionId", collectionId)
+        deleteBuilder.delete()
+    }
+
+    companion object {
+
+        const val DEFAULT_MAX_RUNS = 10
+    }
+}
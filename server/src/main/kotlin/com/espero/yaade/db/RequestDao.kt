@@ -10,6 +10,13 @@ class RequestDao(connectionSource: ConnectionSource) :
         return dao.queryForEq("collectionId", collectionId)
     }
 
+    fun getByIds(ids: List<Long>): List<RequestDb> {
+        if (ids.isEmpty()) {
+            return emptyList()
+        }
+        return dao.queryBuilder().where().`in`("id", ids).query()
+    }
+
     fun deleteAllInCollection(collectionId: Long) {
         val deleteBuilder = dao.deleteBuilder()
         val where = deleteBuilder.where().eq("collectionId", collectionId)
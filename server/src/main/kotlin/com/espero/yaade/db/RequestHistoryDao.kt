@@ -0,0 +1,69 @@
+package com.espero.yaade.db
+
+import com.espero.yaade.model.db.RequestHistoryDb
+import com.j256.ormlite.support.ConnectionSource
+
+class RequestHistoryDao(connectionSource: ConnectionSource) :
+    BaseDao<RequestHistoryDb>(connectionSource, RequestHistoryDb::class.java) {
+
+    fun createAll(entries: List<RequestHistoryDb>) {
+        dao.callBatchTasks {
+            entries.forEach { dao.create(it) }
+        }
+    }
+
+    fun getForRequest(
+        requestId: Long,
+        from: Long?,
+        to: Long?,
+        status: Int?,
+        limit: Long,
+        offset: Long
+    ): List<RequestHistoryDb> {
+        val queryBuilder = dao.queryBuilder()
+        queryBuilder.selectColumns(
+            "id", "requestId", "collectionId", "userId", "createdAt", "status", "time", "size"
+        )
+        val where = queryBuilder.where().eq("requestId", requestId)
+        if (from != null) where.and().ge("createdAt", from)
+        if (to != null) where.and().le("createdAt", to)
+        if (status != null) where.and().eq("status", status)
+        return queryBuilder
+            .orderBy("createdAt", false)
+            .limit(limit)
+            .offset(offset)
+            .query()
+    }
+
+    fun pruneRequest(requestId: Long, maxEntries: Int) {
+        val ids = dao.queryBuilder()
+            .selectColumns("id")
+            .orderBy("createdAt", false)
+            .where().eq("requestId", requestId)
+            .query()
+            .map { it.id }
+        if (ids.size <= maxEntries) {
+            return
+        }
+        dao.deleteIds(ids.subList(maxEntries, ids.size))
+    }
+
+    fun moveToCollection(requestId: Long, collectionId: Long) {
+        val updateBuilder = dao.updateBuilder()
+        updateBuilder.updateColumnValue("collectionId", collectionId)
+        updateBuilder.where().eq("requestId", requestId)
+        updateBuilder.update()
+    }
+
+    fun deleteAllForRequest(requestId: Long) {
+        val deleteBuilder = dao.deleteBuilder()
+        deleteBuilder.where().eq("requestId", requestId)
+        deleteBuilder.delete()
+    }
+
+    fun deleteAllInCollection(collectionId: Long) {
+        val deleteBuilder = dao.deleteBuilder()
+        deleteBuilder.where().eq("collectionId", collectionId)
+        deleteBuilder.delete()
+    }
+}
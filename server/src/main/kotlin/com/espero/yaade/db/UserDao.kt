@@ -3,20 +3,18 @@ package com.espero.yaade.db
 import com.espero.yaade.ADMIN_USERNAME
 import com.espero.yaade.model.db.UserDb
 import com.j256.ormlite.support.ConnectionSource
-import com.password4j.Password
 import io.vertx.core.json.JsonObject
 
 class UserDao(connectionSource: ConnectionSource) :
     BaseDao<UserDb>(connectionSource, UserDb::class.java) {
 
-    private val defaultPassword = System.getenv(DEFAULT_PW_ENV) ?: DEFAULT_PW
+    val defaultPassword = System.getenv(DEFAULT_PW_ENV) ?: DEFAULT_PW
 
     fun getByUsername(username: String): UserDb? {
         return dao.queryForEq("username", username).getOrNull(0)
     }
 
-    fun createUser(username: String, groups: List<String>): UserDb {
-        val hashedPassword = Password.hash(defaultPassword).addRandomSalt().withArgon2().result
+    fun createUser(username: String, groups: List<String>, hashedPassword: String): UserDb {
         val user = UserDb.createWithDefaultSettings(username, hashedPassword, groups)
         dao.create(user)
         return user
@@ -54,9 +52,8 @@ class UserDao(connectionSource: ConnectionSource) :
         return user.username == ADMIN_USERNAME || user.groups().contains("admin")
     }
 
-    fun resetPassword(userId: Long): UserDb {
+    fun resetPassword(userId: Long, hashedPassword: String): UserDb {
         val user = getByIdOrThrow(userId)
-        val hashedPassword = Password.hash(defaultPassword).addRandomSalt().withArgon2().result
         user.password = hashedPassword
         dao.update(user)
         return user
@@ -0,0 +1,25 @@
+package com.espero.yaade.db
+
+import com.espero.yaade.model.db.WebsocketRecordingDb
+import com.j256.ormlite.support.ConnectionSource
+
+class WebsocketRecordingDao(connectionSource: ConnectionSource) :
+    BaseDao<WebsocketRecordingDb>(connectionSource, WebsocketRecordingDb::class.java) {
+
+    fun getAll(): List<WebsocketRecordingDb> {
+        return dao.queryBuilder().orderBy("createdAt", false).query()
+    }
+
+    fun deleteAllInCollection(collectionId: Long) {
+        val deleteBuilder = dao.deleteBuilder()
+        deleteBuilder.where().eq("collectionId", collectionId)
+        deleteBuilder.delete()
+    }
+
+    fun getInCollection(collectionId: Long): List<WebsocketRecordingDb> {
+        return dao.queryBuilder()
+            .orderBy("createdAt", false)
+            .where().eq("collectionId", collectionId)
+            .query()
+    }
+}
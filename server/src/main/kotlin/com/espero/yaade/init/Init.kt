@@ -1,9 +1,50 @@
 package com.espero.yaade.init
 
+import com.espero.yaade.YAADE_JOB_SCRIPT_RUNS_MAX_AGE
 import com.espero.yaade.db.DaoManager
+import com.espero.yaade.services.FileStore
+import io.vertx.core.json.JsonObject
 
 fun createDaoManager(jdbcUrl: String, jdbcUser: String, jdbcPwd: String): DaoManager {
     val daoManager = DaoManager()
-    daoManager.init(jdbcUrl, jdbcUser, jdbcPwd)
+    daoManager.init(jdbcUrl, jdbcUser, jdbcPwd, ::migrate)
     return daoManager
 }
+
+// NOTE: runs on startup and after a backup was imported, before the database is used
+private fun migrate(daoManager: DaoManager) {
+    migrateSchema(daoManager)
+    migrateJobScriptResults(daoManager)
+    FileStore(daoManager).migrateLegacyFiles()
+}
+
+// NOTE: columns that were added to existing tables
+private fun migrateSchema(daoManager: DaoManager) {
+    daoManager.websocketRecordingDao.addColumnIfNotExists("fileName", "VARCHAR(255)")
+    daoManager.fileDao.addColumnIfNotExists("hash", "VARCHAR(255)")
+    daoManager.fileDao.createIndexIfNotExists("hash")
+}
+
+// NOTE: job script results used to be stored inside the script data,
+// they are moved into the job_script_runs table once
+private fun migrateJobScriptResults(daoManager: DaoManager) {
+    val scripts = daoManager.jobScriptDao.getAll()
+        .filter { it.jsonData().containsKey("results") }
+    if (scripts.isEmpty()) {
+        return
+    }
+    daoManager.transaction {
+        for (script in scripts) {
+            val data = script.jsonData()
+            val results = data.getJsonArray("results")
+            data.remove("results")
+            script.setJsonData(data)
+            // NOTE: results are stored newest first, so the oldest is recorded first
+            val runs = results?.reversed()?.filterIsInstance<JsonObject>()?.map {
+                daoManager.jobScriptRunDao.record(script, it, YAADE_JOB_SCRIPT_RUNS_MAX_AGE)
+            } ?: emptyList()
+            script.setLatestRun(data.getLong("lastRun") ?: 0, runs.lastOrNull())
+            daoManager.jobScriptDao.update(script)
+        }
+    }
+}
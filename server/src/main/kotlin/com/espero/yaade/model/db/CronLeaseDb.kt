@@ -0,0 +1,41 @@
+package com.espero.yaade.model.db
+
+import com.j256.ormlite.field.DatabaseField
+import com.j256.ormlite.table.DatabaseTable
+
+/*
+    * A claim of one scheduled fire (script id + planned fire instant) of a cron script.
+    The unique combination of scriptId and fireAt guarantees that only one node can
+    insert the lease. A lease that is not completed before expiresAt can be taken over
+    by another node.
+*/
+@DatabaseTable(tableName = "cron_leases")
+class CronLeaseDb {
+
+    private constructor()
+
+    @DatabaseField(generatedId = true)
+    var id: Long = -1
+
+    @DatabaseField(uniqueCombo = true, index = true)
+    var scriptId: Long = -1
+
+    @DatabaseField(uniqueCombo = true)
+    var fireAt: Long = 0
+
+    @DatabaseField
+    lateinit var owner: String
+
+    @DatabaseField
+    var expiresAt: Long = 0
+
+    @DatabaseField
+    var completed: Boolean = false
+
+    constructor(scriptId: Long, fireAt: Long, owner: String, expiresAt: Long) {
+        this.scriptId = scriptId
+        this.fireAt = fireAt
+        this.owner = owner
+        this.expiresAt = expiresAt
+    }
+}
@@ -0,0 +1,37 @@
+package com.espero.yaade.model.db
+
+import com.j256.ormlite.field.DatabaseField
+import com.j256.ormlite.table.DatabaseTable
+
+/*
+    * The content of uploaded files, stored once per sha-256 hash.
+    refCount is the number of file rows that reference the blob. A blob without
+    references is deleted together with its content.
+*/
+@DatabaseTable(tableName = "file_blobs")
+class FileBlobDb {
+
+    private constructor()
+
+    @DatabaseField(generatedId = true)
+    var id: Long = -1
+
+    @DatabaseField(unique = true)
+    lateinit var hash: String
+
+    @DatabaseField
+    var size: Long = 0
+
+    @DatabaseField
+    var refCount: Int = 0
+
+    @DatabaseField
+    var createdAt: Long = 0
+
+    constructor(hash: String, size: Long) {
+        this.hash = hash
+        this.size = size
+        this.refCount = 1
+        this.createdAt = System.currentTimeMillis()
+    }
+}
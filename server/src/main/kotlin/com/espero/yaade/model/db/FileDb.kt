@@ -20,6 +20,12 @@ class FileDb {
     @DatabaseField(dataType = DataType.BYTE_ARRAY)
     lateinit var data: ByteArray
 
+    // NOTE: files uploaded before the content-addressed store have no hash,
+    // their content is stored under the id of the file. The hash is also kept in the data,
+    // rows created before the column existed are filled in from there
+    @DatabaseField(index = true)
+    var hash: String? = null
+
     constructor(name: String, data: ByteArray) {
         this.name = name
         this.data = data
@@ -29,6 +35,15 @@ class FileDb {
         return JsonObject(data.decodeToString())
     }
 
+    fun setJsonData(data: JsonObject) {
+        this.data = data.encode().toByteArray()
+    }
+
+    fun setBlob(hash: String, size: Long) {
+        this.hash = hash
+        setJsonData(jsonData().put("hash", hash).put("size", size))
+    }
+
     fun groups(): Set<String> {
         val result = mutableSetOf<String>()
         val data = this.jsonData()
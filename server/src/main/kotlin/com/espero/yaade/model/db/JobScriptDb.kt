@@ -44,6 +44,14 @@ class JobScriptDb {
             .put("data", jsonData())
     }
 
+    fun setLatestRun(lastRun: Long, run: JobScriptRunDb?) {
+        val newData = jsonData().put("lastRun", lastRun)
+        if (run != null) {
+            newData.put("lastResult", run.toSummary())
+        }
+        setJsonData(newData)
+    }
+
     fun patchData(data: JsonObject) {
         val newData = jsonData()
         data.forEach { entry ->
@@ -0,0 +1,71 @@
+package com.espero.yaade.model.db
+
+import com.j256.ormlite.field.DataType
+import com.j256.ormlite.field.DatabaseField
+import com.j256.ormlite.table.DatabaseTable
+import io.vertx.core.json.JsonObject
+
+/*
+    * Represents a single run of a job script.
+    The data column holds the result as returned by the script runner:
+    {
+        "success": true,
+        "executionTime": 1700000000000,
+        "envName": "...",
+        "jasmineReport": { ... },
+        "logs": [ ... ],
+        "error": "..."
+    }
+*/
+@DatabaseTable(tableName = "job_script_runs")
+class JobScriptRunDb {
+
+    private constructor()
+
+    @DatabaseField(generatedId = true)
+    var id: Long = -1
+
+    @DatabaseField(indexName = "job_script_runs_script_idx")
+    var scriptId: Long = -1
+
+    @DatabaseField(index = true)
+    var collectionId: Long = -1
+
+    @DatabaseField(indexName = "job_script_runs_script_idx")
+    var createdAt: Long = 0
+
+    @DatabaseField
+    var success: Boolean = false
+
+    @DatabaseField(dataType = DataType.BYTE_ARRAY)
+    lateinit var data: ByteArray
+
+    constructor(scriptId: Long, collectionId: Long, result: JsonObject) {
+        this.scriptId = scriptId
+        this.collectionId = collectionId
+        this.createdAt = result.getLong("executionTime") ?: System.currentTimeMillis()
+        this.success = result.getBoolean("success") ?: false
+        this.data = result.encode().toByteArray()
+    }
+
+    fun jsonData(): JsonObject {
+        return JsonObject(data.decodeToString())
+    }
+
+    // NOTE: this is what the job script row keeps about its latest run
+    fun toSummary(): JsonObject {
+        val data = jsonData()
+        return JsonObject()
+            .put("id", id)
+            .put("success", success)
+            .put("executionTime", createdAt)
+            .put("envName", data.getString("envName"))
+            .put("error", data.getString("error"))
+    }
+
+    fun toJson(): JsonObject {
+        return jsonData()
+            .put("id", id)
+            .put("scriptId", scriptId)
+    }
+}
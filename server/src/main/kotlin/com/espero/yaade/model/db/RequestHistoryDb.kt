@@ -0,0 +1,154 @@
+package com.espero.yaade.model.db
+
+import com.j256.ormlite.field.DataType
+import com.j256.ormlite.field.DatabaseField
+import com.j256.ormlite.table.DatabaseTable
+import io.vertx.core.json.JsonObject
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/*
+    * Represents a single invocation of a request.
+    The structure of data is as follows:
+    {
+        "request": { ... request data as sent by the client, without secrets ... },
+        "response": {
+            "headers": [ { "key": "...", "value": "..." } ],
+            "error": "...",
+            "httpVersion": "HTTP_1_1",
+            "bodyTruncated": false
+        }
+    }
+    The response body is stored gzip compressed in the body column.
+*/
+@DatabaseTable(tableName = "request_history")
+class RequestHistoryDb {
+
+    private constructor()
+
+    @DatabaseField(generatedId = true)
+    var id: Long = -1
+
+    @DatabaseField(indexName = "request_history_request_idx")
+    var requestId: Long = -1
+
+    @DatabaseField(index = true)
+    var collectionId: Long = -1
+
+    @DatabaseField
+    var userId: Long = -1
+
+    @DatabaseField(indexName = "request_history_request_idx")
+    var createdAt: Long = 0
+
+    @DatabaseField(index = true)
+    var status: Int = -1
+
+    @DatabaseField
+    var time: Long = 0
+
+    @DatabaseField
+    var size: Long = 0
+
+    @DatabaseField(dataType = DataType.BYTE_ARRAY)
+    lateinit var data: ByteArray
+
+    @DatabaseField(dataType = DataType.BYTE_ARRAY)
+    lateinit var body: ByteArray
+
+    constructor(
+        requestId: Long,
+        collectionId: Long,
+        userId: Long,
+        createdAt: Long,
+        status: Int,
+        time: Long,
+        size: Long,
+        data: JsonObject,
+        body: String
+    ) {
+        this.requestId = requestId
+        this.collectionId = collectionId
+        this.userId = userId
+        this.createdAt = createdAt
+        this.status = status
+        this.time = time
+        this.size = size
+        this.data = data.encode().toByteArray()
+        this.body = compress(body)
+    }
+
+    fun jsonData(): JsonObject {
+        return JsonObject(data.decodeToString())
+    }
+
+    fun bodyAsString(): String {
+        return decompress(body)
+    }
+
+    fun toJson(): JsonObject {
+        return JsonObject()
+            .put("id", id)
+            .put("requestId", requestId)
+            .put("collectionId", collectionId)
+            .put("userId", userId)
+            .put("createdAt", createdAt)
+            .put("status", if (status == -1) null else status)
+            .put("time", time)
+            .put("size", size)
+    }
+
+    fun toJsonWithData(): JsonObject {
+        val data = jsonData()
+        val response = data.getJsonObject("response") ?: JsonObject()
+        response.put("body", bodyAsString())
+        data.put("response", response)
+        return toJson().put("data", data)
+    }
+
+    companion object {
+
+        fun fromInvocation(entry: JsonObject, maxBodySize: Int): RequestHistoryDb {
+            val response = entry.getJsonObject("response") ?: JsonObject()
+            var body = response.getString("body") ?: ""
+            val bodyTruncated = body.length > maxBodySize
+            if (bodyTruncated) {
+                body = body.substring(0, maxBodySize)
+            }
+            val data = JsonObject()
+                .put("request", entry.getJsonObject("request"))
+                .put(
+                    "response", JsonObject()
+                        .put("headers", response.getJsonArray("headers"))
+                        .put("error", response.getString("error"))
+                        .put("httpVersion", response.getString("httpVersion"))
+                        .put("bodyTruncated", bodyTruncated)
+                )
+            return RequestHistoryDb(
+                requestId = entry.getLong("requestId"),
+                collectionId = entry.getLong("collectionId"),
+                userId = entry.getLong("userId", -1),
+                createdAt = entry.getLong("createdAt"),
+                status = response.getInteger("status", -1),
+                time = response.getLong("time", 0),
+                size = response.getLong("size", 0),
+                data = data,
+                body = body
+            )
+        }
+
+        private fun compress(value: String): ByteArray {
+            val out = ByteArrayOutputStream()
+            GZIPOutputStream(out).use { it.write(value.toByteArray()) }
+            return out.toByteArray()
+        }
+
+        private fun decompress(value: ByteArray): String {
+            return GZIPInputStream(ByteArrayInputStream(value)).use {
+                it.readBytes().decodeToString()
+            }
+        }
+    }
+}
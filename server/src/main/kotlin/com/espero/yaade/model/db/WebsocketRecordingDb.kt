@@ -0,0 +1,80 @@
+package com.espero.yaade.model.db
+
+import com.j256.ormlite.field.DatabaseField
+import com.j256.ormlite.table.DatabaseTable
+import io.vertx.core.json.JsonObject
+import java.util.*
+
+/*
+    * Describes a recorded websocket session. The frames are stored gzip compressed in
+    the recordings directory, one json object per line:
+    { "t": 1700000000000, "d": "in", "b": false, "m": "..." }
+    d is "in" for frames received from the upstream socket and "out" for frames sent to it.
+    Binary frames (b = true) are stored base64 encoded.
+*/
+@DatabaseTable(tableName = "ws_recordings")
+class WebsocketRecordingDb {
+
+    private constructor()
+
+    @DatabaseField(generatedId = true)
+    var id: Long = -1
+
+    @DatabaseField(index = true)
+    var collectionId: Long = -1
+
+    @DatabaseField
+    var userId: Long = -1
+
+    @DatabaseField
+    lateinit var uri: String
+
+    @DatabaseField
+    var createdAt: Long = 0
+
+    @DatabaseField
+    var frames: Long = 0
+
+    @DatabaseField
+    var size: Long = 0
+
+    @DatabaseField
+    var dropped: Long = 0
+
+    @DatabaseField
+    var truncated: Boolean = false
+
+    @DatabaseField
+    var finished: Boolean = false
+
+    // NOTE: ids start again with an imported backup, so the frames are stored under a unique
+    // name. Recordings created before have no file name, their file is named by the id
+    @DatabaseField
+    var fileName: String? = null
+
+    constructor(collectionId: Long, userId: Long, uri: String) {
+        this.collectionId = collectionId
+        this.userId = userId
+        this.uri = uri
+        this.createdAt = System.currentTimeMillis()
+        this.fileName = "${UUID.randomUUID()}.jsonl.gz"
+    }
+
+    fun recordingFileName(): String {
+        return fileName ?: "$id.jsonl.gz"
+    }
+
+    fun toJson(): JsonObject {
+        return JsonObject()
+            .put("id", id)
+            .put("collectionId", collectionId)
+            .put("userId", userId)
+            .put("uri", uri)
+            .put("createdAt", createdAt)
+            .put("frames", frames)
+            .put("size", size)
+            .put("dropped", dropped)
+            .put("truncated", truncated)
+            .put("finished", finished)
+    }
+}
@@ -2,16 +2,27 @@ package com.espero.yaade.server
 
 import com.espero.yaade.ADMIN_USERNAME
 import com.espero.yaade.BASE_PATH
+import com.espero.yaade.YAADE_FILE_GC_INTERVAL
 import com.espero.yaade.YAADE_SERVER_BODY_LIMIT
 import com.espero.yaade.YAADE_SERVER_MAX_HEADER_SIZE
 import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.CollectionDb
 import com.espero.yaade.model.db.ConfigDb
+import com.espero.yaade.server.auth.AccessTokenVerifier
 import com.espero.yaade.server.auth.AuthHandler
+import com.espero.yaade.server.auth.LoginThrottle
+import com.espero.yaade.server.auth.PasswordHasher
+import com.espero.yaade.server.errors.ServerError
 import com.espero.yaade.server.errors.handleFailure
 import com.espero.yaade.server.routes.*
 import com.espero.yaade.server.utils.*
+import com.espero.yaade.services.BackupExporter
+import com.espero.yaade.services.BackupImporter
+import com.espero.yaade.services.BackupScheduler
+import com.espero.yaade.services.CollectionRunner
+import com.espero.yaade.services.FileStore
 import com.espero.yaade.services.RequestSender
+import io.netty.handler.codec.http.HttpResponseStatus
 import io.vertx.core.http.HttpMethod
 import io.vertx.core.http.HttpServer
 import io.vertx.core.http.HttpServerOptions
@@ -24,8 +35,13 @@ import io.vertx.ext.web.sstore.LocalSessionStore
 import io.vertx.ext.web.sstore.SessionStore
 import io.vertx.kotlin.coroutines.CoroutineVerticle
 import io.vertx.kotlin.coroutines.coAwait
+import java.util.concurrent.Callable
 
-class Server(private val port: Int, private val daoManager: DaoManager) : CoroutineVerticle() {
+class Server(
+    private val port: Int,
+    private val daoManager: DaoManager,
+    val backupExporter: BackupExporter
+) : CoroutineVerticle() {
 
     private val log = LoggerFactory.getLogger(Server::class.java)
     private val sessionTimeout: Long = 6 * 60 * 60 * 1000L
@@ -33,10 +49,46 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
     var server: HttpServer? = null
     var sessionStore: SessionStore? = null
 
+    // NOTE: the hasher and the throttle outlive restarts, a restart wipes all sessions and
+    // is usually followed by a burst of logins
+    lateinit var passwordHasher: PasswordHasher
+    val loginThrottle = LoginThrottle()
+    lateinit var backupImporter: BackupImporter
+    lateinit var accessTokenVerifier: AccessTokenVerifier
+    private var fileGcTimerId = -1L
+
     public override suspend fun start() {
+        passwordHasher = PasswordHasher(vertx)
+        backupImporter = BackupImporter(daoManager)
+        accessTokenVerifier = AccessTokenVerifier(daoManager)
+        val fileStore = FileStore(daoManager)
+        fileGcTimerId = vertx.setPeriodic(YAADE_FILE_GC_INTERVAL) {
+            // NOTE: the reference counts of the database that is replaced do not matter
+            if (backupImporter.isRestoring()) {
+                return@setPeriodic
+            }
+            vertx.executeBlocking(Callable { fileStore.collectGarbage() }, false)
+                .onSuccess {
+                    if (it.getInteger("deletedBlobs") + it.getInteger("deletedFiles") > 0) {
+                        log.info("Collected unreferenced files: ${it.encode()}")
+                    }
+                }
+                .onFailure { log.error("Failed to collect unreferenced files", it) }
+        }
         restartServer()
     }
 
+    // NOTE: the server keeps running after a backup was imported, only the state that was
+    // loaded from the replaced database is refreshed. Sessions hold the user of the replaced
+    // database, which can be deleted or differ in the backup, so all users are logged out
+    suspend fun onDatabaseRestored() {
+        sessionStore?.clear()?.coAwait()
+        accessTokenVerifier.invalidateAll()
+        vertx.eventBus().send("cronjob.reload", null)
+        vertx.eventBus().publish(BackupScheduler.RESTORED_ADDRESS, null)
+        ensureAdminUser()
+    }
+
     suspend fun restartServer() {
         try {
             if (server != null) {
@@ -46,18 +98,19 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
                 sessionStore!!.close()
             }
             sessionStore = LocalSessionStore.create(vertx)
-            val authHandler = AuthHandler(vertx, daoManager)
+            val authHandler = AuthHandler(vertx, daoManager, passwordHasher, loginThrottle)
             val requestSender = RequestSender(vertx, daoManager)
+            val collectionRunner = CollectionRunner(vertx, daoManager, requestSender)
 
-            val collectionRoute = CollectionRoute(daoManager, vertx)
+            val collectionRoute = CollectionRoute(daoManager, vertx, collectionRunner)
             val requestRoute = RequestRoute(daoManager)
-            val userRoute = UserRoute(daoManager, vertx)
+            val userRoute = UserRoute(daoManager, vertx, passwordHasher)
             val adminRoute = AdminRoute(daoManager, vertx, authHandler::testAuthConfig, this)
-            val invokeRoute = InvokeRoute(daoManager, requestSender)
+            val invokeRoute = InvokeRoute(daoManager, requestSender, vertx)
             val certificateRoute = CertificateRoute(daoManager, vertx)
-            val fileRoute = FileRoute(daoManager)
+            val fileRoute = FileRoute(daoManager, vertx)
             val scriptRoute = ScriptRoute(daoManager, vertx)
-            val accessTokenRoute = AccessTokenRoute(daoManager)
+            val accessTokenRoute = AccessTokenRoute(daoManager, accessTokenVerifier)
             val websocketRoute = WebsocketRoute(vertx, daoManager)
 
             val routerBuilder = RouterBuilder.create(vertx, "openapi.yaml").coAwait()
@@ -84,6 +137,23 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
                 }
             }
 
+            // NOTE: while a backup is imported the current database is read-only, changes
+            // made in the meantime would be lost with the swap
+            routerBuilder.rootHandler {
+                if (backupImporter.isRestoring() && it.request().method() != HttpMethod.GET &&
+                    !it.request().path().endsWith("/api/login")
+                ) {
+                    it.fail(
+                        ServerError(
+                            HttpResponseStatus.SERVICE_UNAVAILABLE.code(),
+                            "A backup is being imported, try again later"
+                        )
+                    )
+                } else {
+                    it.next()
+                }
+            }
+
             routerBuilder.operation("health").coroutineHandler(this, ::health)
             routerBuilder.operation("getLoginProviders").coroutineHandler(this, authHandler)
 
@@ -110,6 +180,8 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
                 .userCoroutineHandler(this, collectionRoute::moveCollection)
             routerBuilder.operation("deleteCollection")
                 .userCoroutineHandler(this, collectionRoute::deleteCollection)
+            routerBuilder.operation("runCollection")
+                .userCoroutineHandler(this, collectionRoute::runCollection)
             routerBuilder.operation("importOpenApi")
                 .userCoroutineHandler(this, collectionRoute::importOpenApiCollection)
             routerBuilder.operation("importPostman")
@@ -135,6 +207,10 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
                 .userCoroutineHandler(this, requestRoute::moveRequest)
             routerBuilder.operation("deleteRequest")
                 .userCoroutineHandler(this, requestRoute::deleteRequest)
+            routerBuilder.operation("getRequestHistory")
+                .userCoroutineHandler(this, requestRoute::getRequestHistory)
+            routerBuilder.operation("getRequestHistoryEntry")
+                .userCoroutineHandler(this, requestRoute::getRequestHistoryEntry)
 
             routerBuilder.operation("invoke")
                 .userCoroutineHandler(this, invokeRoute::invoke)
@@ -143,6 +219,10 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
                 .adminCoroutineHandler(this, adminRoute::exportBackup)
             routerBuilder.operation("importBackup")
                 .adminCoroutineHandler(this, adminRoute::importBackup)
+            routerBuilder.operation("getBackupProgress")
+                .adminCoroutineHandler(this, adminRoute::getBackupProgress)
+            routerBuilder.operation("getScheduledBackups")
+                .adminCoroutineHandler(this, adminRoute::getScheduledBackups)
             routerBuilder.operation("createUser")
                 .adminCoroutineHandler(this, adminRoute::createUser)
             routerBuilder.operation("updateUser")
@@ -153,6 +233,12 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
                 .adminCoroutineHandler(this, adminRoute::resetUserPassword)
             routerBuilder.operation("getUsers")
                 .adminCoroutineHandler(this, adminRoute::getUsers)
+            routerBuilder.operation("getCronStats")
+                .adminCoroutineHandler(this, adminRoute::getCronStats)
+            routerBuilder.operation("getScriptMetrics")
+                .adminCoroutineHandler(this, adminRoute::getScriptMetrics)
+            routerBuilder.operation("getAuthMetrics")
+                .adminCoroutineHandler(this, adminRoute::getAuthMetrics)
             routerBuilder.operation("getConfig")
                 .adminCoroutineHandler(this, adminRoute::getConfig)
             routerBuilder.operation("setConfig")
@@ -177,6 +263,11 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
             routerBuilder.operation("deleteFile")
                 .userCoroutineHandler(this, fileRoute::deleteFile)
 
+            routerBuilder.operation("getWebsocketRecordings")
+                .userCoroutineHandler(this, websocketRoute::getRecordings)
+            routerBuilder.operation("deleteWebsocketRecording")
+                .userCoroutineHandler(this, websocketRoute::deleteRecording)
+
             routerBuilder.operation("createScript")
                 .userCoroutineHandler(this, scriptRoute::createScript)
             routerBuilder.operation("deleteScript")
@@ -187,6 +278,8 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
                 .userCoroutineHandler(this, scriptRoute::getScript)
             routerBuilder.operation("runScript")
                 .userCoroutineHandler(this, scriptRoute::runScript)
+            routerBuilder.operation("getScriptRuns")
+                .userCoroutineHandler(this, scriptRoute::getScriptRuns)
             routerBuilder.operation("moveScript")
                 .userCoroutineHandler(this, scriptRoute::moveScript)
             routerBuilder.operation("takeScriptOwnership")
@@ -200,28 +293,16 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
                 .userCoroutineHandler(this, accessTokenRoute::deleteAccessToken)
 
             routerBuilder.operation("tokenRunScript")
-                .tokenCoroutineHandler(this, daoManager, scriptRoute::tokenRunScript)
+                .tokenCoroutineHandler(this, accessTokenVerifier, true, scriptRoute::tokenRunScript)
             routerBuilder.operation("tokenListScripts")
-                .tokenCoroutineHandler(this, daoManager, scriptRoute::tokenListScripts)
+                .tokenCoroutineHandler(
+                    this, accessTokenVerifier, false, scriptRoute::tokenListScripts
+                )
 
             val router = routerBuilder.createRouter()
             router.route("/*").coroutineHandler(this, StaticHandler.create())
 
-            val admin = daoManager.userDao.getByUsername(ADMIN_USERNAME)
-
-            if (admin == null) {
-                val adminUser = daoManager.userDao.createUser(ADMIN_USERNAME, listOf("admin"))
-                log.info("Created admin user")
-                val data = JsonObject().put("name", "Collection").put("groups", listOf("admin"))
-                val collection = CollectionDb(data, adminUser.id)
-                daoManager.collectionDao.create(collection)
-            } else {
-                if (!admin.groups().contains("admin")) {
-                    admin.setGroups(setOf("admin"))
-                    daoManager.userDao.update(admin)
-                    log.info("Added admin user to admin group")
-                }
-            }
+            ensureAdminUser()
 
             var authConfig = daoManager.configDao.getByName(ConfigDb.AUTH_CONFIG)?.getConfig()
             if (authConfig == null) {
@@ -272,7 +353,31 @@ class Server(private val port: Int, private val daoManager: DaoManager) : Corout
         }
     }
 
+    private suspend fun ensureAdminUser() {
+        val admin = daoManager.userDao.getByUsername(ADMIN_USERNAME)
+
+        if (admin == null) {
+            val hashedPassword =
+                passwordHasher.hash(daoManager.userDao.defaultPassword).coAwait()
+            val adminUser =
+                daoManager.userDao.createUser(ADMIN_USERNAME, listOf("admin"), hashedPassword)
+            log.info("Created admin user")
+            val data = JsonObject().put("name", "Collection").put("groups", listOf("admin"))
+            val collection = CollectionDb(data, adminUser.id)
+            daoManager.collectionDao.create(collection)
+        } else {
+            if (!admin.groups().contains("admin")) {
+                admin.setGroups(setOf("admin"))
+                daoManager.userDao.update(admin)
+                log.info("Added admin user to admin group")
+            }
+        }
+    }
+
     public override suspend fun stop() {
         server?.close()?.coAwait()
+        vertx.cancelTimer(fileGcTimerId)
+        passwordHasher.close()
+        backupExporter.close()
     }
 }
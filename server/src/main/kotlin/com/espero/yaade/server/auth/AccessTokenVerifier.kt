@@ -0,0 +1,125 @@
+package com.espero.yaade.server.auth
+
+import com.espero.yaade.YAADE_ACCESS_TOKEN_CACHE_TTL
+import com.espero.yaade.YAADE_ACCESS_TOKEN_MAX_CONCURRENT_RUNS
+import com.espero.yaade.YAADE_ACCESS_TOKEN_RATE_LIMIT
+import com.espero.yaade.db.DaoManager
+import com.espero.yaade.model.db.UserDb
+import com.espero.yaade.server.errors.ServerError
+import com.espero.yaade.server.utils.hashWithSHA256
+import io.netty.handler.codec.http.HttpResponseStatus
+import java.util.concurrent.ConcurrentHashMap
+
+// NOTE: verified tokens are cached for a short time, so CI pipelines that call the api in
+// a loop do not hit the database on every call. Deleting a token invalidates its entry,
+// deleting or updating the owner invalidates all entries of the owner.
+// The rate limit is a token bucket per access token that refills over one minute
+class AccessTokenVerifier(private val daoManager: DaoManager) {
+
+    private val cache = ConcurrentHashMap<String, VerifiedToken>()
+    private val buckets = ConcurrentHashMap<Long, RateBucket>()
+    private val runningCalls = ConcurrentHashMap<Long, Int>()
+
+    fun verify(token: String): VerifiedToken {
+        val hashedSecret = hashWithSHA256(token)
+        val now = System.currentTimeMillis()
+        val cached = cache[hashedSecret]
+        if (cached != null && cached.expiresAt > now) {
+            return cached
+        }
+        val accessToken = daoManager.accessTokenDao.getByHashedSecret(hashedSecret)
+            ?: throw ServerError(HttpResponseStatus.UNAUTHORIZED.code(), "Invalid token")
+        val user = daoManager.userDao.getById(accessToken.ownerId)
+            ?: throw ServerError(HttpResponseStatus.UNAUTHORIZED.code(), "Invalid token")
+        val verified = VerifiedToken(
+            accessToken.id,
+            accessToken.publicId,
+            user,
+            now + YAADE_ACCESS_TOKEN_CACHE_TTL
+        )
+        if (cache.size >= MAX_CACHED_TOKENS) {
+            cache.values.removeIf { it.expiresAt <= now }
+            if (cache.size >= MAX_CACHED_TOKENS) {
+                cache.clear()
+            }
+        }
+        cache[hashedSecret] = verified
+        return verified
+    }
+
+    fun invalidate(publicId: String) {
+        cache.values.removeIf { it.publicId == publicId }
+    }
+
+    fun invalidateOwner(userId: Long) {
+        cache.values.removeIf { it.user.id == userId }
+    }
+
+    fun invalidateAll() {
+        cache.clear()
+    }
+
+    // NOTE: returns the number of milliseconds until the next call is allowed,
+    // or 0 if the call is allowed
+    fun tryAcquireRate(tokenId: Long): Long {
+        if (YAADE_ACCESS_TOKEN_RATE_LIMIT <= 0) {
+            return 0
+        }
+        return buckets.computeIfAbsent(tokenId) { RateBucket(YAADE_ACCESS_TOKEN_RATE_LIMIT) }
+            .tryAcquire()
+    }
+
+    fun tryAcquireCall(tokenId: Long): Boolean {
+        if (YAADE_ACCESS_TOKEN_MAX_CONCURRENT_RUNS <= 0) {
+            return true
+        }
+        var acquired = false
+        runningCalls.compute(tokenId) { _, running ->
+            val current = running ?: 0
+            if (current < YAADE_ACCESS_TOKEN_MAX_CONCURRENT_RUNS) {
+                acquired = true
+                current + 1
+            } else {
+                current
+            }
+        }
+        return acquired
+    }
+
+    fun releaseCall(tokenId: Long) {
+        if (YAADE_ACCESS_TOKEN_MAX_CONCURRENT_RUNS <= 0) {
+            return
+        }
+        runningCalls.computeIfPresent(tokenId) { _, running -> (running - 1).takeIf { it > 0 } }
+    }
+
+    class VerifiedToken(
+        val id: Long,
+        val publicId: String,
+        val user: UserDb,
+        val expiresAt: Long
+    )
+
+    private class RateBucket(private val perMinute: Int) {
+
+        private var tokens = perMinute.toDouble()
+        private var updatedAt = System.currentTimeMillis()
+
+        @Synchronized
+        fun tryAcquire(): Long {
+            val now = System.currentTimeMillis()
+            tokens = minOf(perMinute.toDouble(), tokens + (now - updatedAt) * perMinute / 60_000.0)
+            updatedAt = now
+            if (tokens >= 1) {
+                tokens -= 1
+                return 0
+            }
+            return ((1 - tokens) * 60_000 / perMinute).toLong() + 1
+        }
+    }
+
+    companion object {
+
+        const val MAX_CACHED_TOKENS = 10_000
+    }
+}
@@ -23,8 +23,12 @@ import io.vertx.kotlin.coroutines.coAwait
 import java.net.MalformedURLException
 import java.net.URL
 
-class AuthHandler(private val vertx: Vertx, private val daoManager: DaoManager) :
-    AuthenticationHandler {
+class AuthHandler(
+    private val vertx: Vertx,
+    private val daoManager: DaoManager,
+    private val passwordHasher: PasswordHasher,
+    private val loginThrottle: LoginThrottle
+) : AuthenticationHandler {
 
     private lateinit var router: Router
     private lateinit var delegate: MultiTenantHandler
@@ -47,8 +51,8 @@ class AuthHandler(private val vertx: Vertx, private val daoManager: DaoManager)
             ctx.request().getParam("providerId")
         }, "providerId")
 
-        val localAuthProvider = LocalAuthProvider(daoManager)
-        val localAuthHandler = LocalAuthHandler(localAuthProvider)
+        val localAuthProvider = LocalAuthProvider(daoManager, passwordHasher)
+        val localAuthHandler = LocalAuthHandler(localAuthProvider, loginThrottle)
         delegate.addDefaultHandler(localAuthHandler)
 
         applyAuthConfig(authConfig, false)
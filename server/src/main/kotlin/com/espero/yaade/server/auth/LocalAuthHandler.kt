@@ -1,5 +1,7 @@
 package com.espero.yaade.server.auth
 
+import com.espero.yaade.server.errors.ServerError
+import io.netty.handler.codec.http.HttpResponseStatus
 import io.vertx.core.AsyncResult
 import io.vertx.core.Future
 import io.vertx.core.Handler
@@ -10,8 +12,10 @@ import io.vertx.ext.web.RoutingContext
 import io.vertx.ext.web.handler.HttpException
 import io.vertx.ext.web.handler.impl.AuthenticationHandlerImpl
 
-class LocalAuthHandler(authProvider: AuthenticationProvider) :
-    AuthenticationHandlerImpl<AuthenticationProvider>(authProvider) {
+class LocalAuthHandler(
+    authProvider: AuthenticationProvider,
+    private val loginThrottle: LoginThrottle
+) : AuthenticationHandlerImpl<AuthenticationProvider>(authProvider) {
 
     override fun authenticate(ctx: RoutingContext, handler: Handler<AsyncResult<User>>) {
         try {
@@ -20,13 +24,37 @@ class LocalAuthHandler(authProvider: AuthenticationProvider) :
 
             if (username == null || password == null) {
                 handler.handle(Future.failedFuture(HttpException(400)))
+                return
+            }
+
+            // NOTE: throttled and rejected logins fail the context directly, so the
+            // failure handler answers with the status code of the server error
+            val ip = ctx.request().remoteAddress()?.host()
+            val retryAfter = loginThrottle.retryAfter(username, ip)
+            if (retryAfter > 0) {
+                ctx.response().putHeader("Retry-After", ((retryAfter + 999) / 1000).toString())
+                ctx.fail(
+                    ServerError(
+                        HttpResponseStatus.TOO_MANY_REQUESTS.code(),
+                        "Too many failed logins, try again later"
+                    )
+                )
+                return
             }
 
             authProvider.authenticate(UsernamePasswordCredentials(username, password)) { authn ->
-                if (authn.failed()) {
-                    handler.handle(Future.failedFuture(HttpException(401, authn.cause())))
-                } else {
-                    handler.handle(authn)
+                val cause = authn.cause()
+                when {
+                    authn.succeeded() -> {
+                        loginThrottle.onSuccess(username)
+                        handler.handle(authn)
+                    }
+
+                    cause is ServerError -> ctx.fail(cause)
+                    else -> {
+                        loginThrottle.onFailure(username, ip)
+                        handler.handle(Future.failedFuture(HttpException(401, cause)))
+                    }
                 }
             }
         } catch (t: Throwable) {
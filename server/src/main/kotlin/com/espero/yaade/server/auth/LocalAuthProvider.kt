@@ -1,7 +1,6 @@
 package com.espero.yaade.server.auth
 
 import com.espero.yaade.db.DaoManager
-import com.password4j.Password
 import io.vertx.core.AsyncResult
 import io.vertx.core.Future
 import io.vertx.core.Handler
@@ -9,7 +8,10 @@ import io.vertx.core.json.JsonObject
 import io.vertx.ext.auth.User
 import io.vertx.ext.auth.authentication.AuthenticationProvider
 
-class LocalAuthProvider(private val daoManager: DaoManager) : AuthenticationProvider {
+class LocalAuthProvider(
+    private val daoManager: DaoManager,
+    private val passwordHasher: PasswordHasher
+) : AuthenticationProvider {
 
     override fun authenticate(credentials: JsonObject, resultHandler: Handler<AsyncResult<User>>) {
         try {
@@ -23,11 +25,15 @@ class LocalAuthProvider(private val daoManager: DaoManager) : AuthenticationProv
             if (isExternal) {
                 throw RuntimeException("Cannot perform local login on external user")
             }
-            if (!Password.check(password, user.password).withArgon2()) {
-                throw RuntimeException("Password does not match")
-            }
-            val sessionUser = user.toSessionUser()
-            resultHandler.handle(Future.succeededFuture(sessionUser))
+            passwordHasher.check(password, user.password)
+                .compose { matches ->
+                    if (!matches) {
+                        Future.failedFuture(RuntimeException("Password does not match"))
+                    } else {
+                        Future.succeededFuture<User>(user.toSessionUser())
+                    }
+                }
+                .onComplete(resultHandler)
         } catch (t: Throwable) {
             resultHandler.handle(Future.failedFuture(t))
         }
@@ -0,0 +1,115 @@
+package com.espero.yaade.server.auth
+
+import com.espero.yaade.YAADE_LOGIN_LOCKOUT
+import com.espero.yaade.YAADE_LOGIN_MAX_FAILED_ATTEMPTS
+import io.vertx.core.json.JsonObject
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+// NOTE: failed logins are counted per username and per ip. When one of them reaches the
+// maximum number of failed attempts within the lockout window, further logins are rejected
+// before any password is hashed until the window has passed
+class LoginThrottle {
+
+    private val usernames = ConcurrentHashMap<String, FailedAttempts>()
+    private val ips = ConcurrentHashMap<String, FailedAttempts>()
+    private val throttled = AtomicLong()
+
+    // NOTE: returns the number of milliseconds until the next login is allowed,
+    // or 0 if the login is allowed
+    fun retryAfter(username: String, ip: String?): Long {
+        if (YAADE_LOGIN_MAX_FAILED_ATTEMPTS <= 0) {
+            return 0
+        }
+        val now = System.currentTimeMillis()
+        val retryAfter = maxOf(
+            usernames[username]?.retryAfter(now) ?: 0,
+            ip?.let { ips[it]?.retryAfter(now) } ?: 0
+        )
+        if (retryAfter > 0) {
+            throttled.incrementAndGet()
+        }
+        return retryAfter
+    }
+
+    fun onFailure(username: String, ip: String?) {
+        if (YAADE_LOGIN_MAX_FAILED_ATTEMPTS <= 0) {
+            return
+        }
+        val now = System.currentTimeMillis()
+        cleanUp(now)
+        usernames.computeIfAbsent(username) { FailedAttempts() }.add(now)
+        ip?.let { ips.computeIfAbsent(it) { FailedAttempts() }.add(now) }
+    }
+
+    fun onSuccess(username: String) {
+        usernames.remove(username)
+    }
+
+    fun metrics(): JsonObject {
+        val now = System.currentTimeMillis()
+        return JsonObject()
+            .put("throttledLogins", throttled.get())
+            .put("lockedUsernames", usernames.values.count { it.retryAfter(now) > 0 })
+            .put("lockedIps", ips.values.count { it.retryAfter(now) > 0 })
+    }
+
+    private fun cleanUp(now: Long) {
+        if (usernames.size + ips.size < MAX_TRACKED_KEYS) {
+            return
+        }
+        usernames.values.removeIf { it.isExpired(now) }
+        ips.values.removeIf { it.isExpired(now) }
+        val excess = usernames.size + ips.size - EVICT_TO_KEYS
+        if (excess <= 0) {
+            return
+        }
+        // NOTE: keys that are locked out are never evicted, otherwise flooding the throttle
+        // with new keys would lift a lockout
+        val unlocked = (usernames.entries.map { usernames to it } + ips.entries.map { ips to it })
+            .filter { it.second.value.retryAfter(now) <= 0 }
+            .sortedBy { it.second.value.windowStart() }
+        for ((map, entry) in unlocked.take(excess)) {
+            map.remove(entry.key, entry.value)
+        }
+    }
+
+    private class FailedAttempts {
+
+        private var count = 0
+        private var windowStart = 0L
+
+        @Synchronized
+        fun add(now: Long) {
+            if (now - windowStart >= YAADE_LOGIN_LOCKOUT) {
+                windowStart = now
+                count = 0
+            }
+            count++
+        }
+
+        @Synchronized
+        fun retryAfter(now: Long): Long {
+            if (count < YAADE_LOGIN_MAX_FAILED_ATTEMPTS) {
+                return 0
+            }
+            return maxOf(windowStart + YAADE_LOGIN_LOCKOUT - now, 0)
+        }
+
+        @Synchronized
+        fun windowStart(): Long {
+            return windowStart
+        }
+
+        @Synchronized
+        fun isExpired(now: Long): Boolean {
+            return now - windowStart >= YAADE_LOGIN_LOCKOUT
+        }
+    }
+
+    companion object {
+
+        const val MAX_TRACKED_KEYS = 100_000
+        const val EVICT_TO_KEYS = 90_000
+    }
+}
@@ -0,0 +1,85 @@
+package com.espero.yaade.server.auth
+
+import com.espero.yaade.YAADE_PASSWORD_HASH_QUEUE_SIZE
+import com.espero.yaade.YAADE_PASSWORD_HASH_THREADS
+import com.espero.yaade.server.errors.ServerError
+import com.password4j.Password
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.vertx.core.Future
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonObject
+import java.util.concurrent.Callable
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+// NOTE: argon2 is slow on purpose, so it runs on a dedicated worker pool instead of the
+// event loop or the shared worker pool. The number of waiting hashes is bounded, calls that
+// do not fit into the queue fail with 503 instead of piling up during a login storm
+class PasswordHasher(vertx: Vertx) {
+
+    private val executor = vertx.createSharedWorkerExecutor(POOL_NAME, YAADE_PASSWORD_HASH_THREADS)
+    private val pending = AtomicInteger()
+    private val active = AtomicInteger()
+    private val completed = AtomicLong()
+    private val rejected = AtomicLong()
+    private val totalWaitTime = AtomicLong()
+    private val totalHashTime = AtomicLong()
+
+    fun hash(password: String): Future<String> {
+        return submit { Password.hash(password).addRandomSalt().withArgon2().result }
+    }
+
+    fun check(password: String, hashedPassword: String): Future<Boolean> {
+        return submit { Password.check(password, hashedPassword).withArgon2() }
+    }
+
+    fun metrics(): JsonObject {
+        val done = completed.get()
+        return JsonObject()
+            .put("threads", YAADE_PASSWORD_HASH_THREADS)
+            .put("maxQueueSize", YAADE_PASSWORD_HASH_QUEUE_SIZE)
+            .put("queued", pending.get() - active.get())
+            .put("active", active.get())
+            .put("completed", done)
+            .put("rejected", rejected.get())
+            .put("averageWaitTime", if (done > 0) totalWaitTime.get() / done else 0)
+            .put("averageHashTime", if (done > 0) totalHashTime.get() / done else 0)
+    }
+
+    fun close() {
+        executor.close()
+    }
+
+    private fun <T> submit(task: () -> T): Future<T> {
+        val capacity = YAADE_PASSWORD_HASH_THREADS + YAADE_PASSWORD_HASH_QUEUE_SIZE
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet()
+            rejected.incrementAndGet()
+            return Future.failedFuture(
+                ServerError(
+                    HttpResponseStatus.SERVICE_UNAVAILABLE.code(),
+                    "Too many password operations, try again later"
+                )
+            )
+        }
+        val submittedAt = System.currentTimeMillis()
+        return executor.executeBlocking(Callable {
+            val startedAt = System.currentTimeMillis()
+            active.incrementAndGet()
+            try {
+                task()
+            } finally {
+                active.decrementAndGet()
+                pending.decrementAndGet()
+                completed.incrementAndGet()
+                totalWaitTime.addAndGet(startedAt - submittedAt)
+                totalHashTime.addAndGet(System.currentTimeMillis() - startedAt)
+            }
+        }, false)
+    }
+
+    companion object {
+
+        const val POOL_NAME = "yaade-password-hasher"
+    }
+}
@@ -2,11 +2,15 @@ package com.espero.yaade.server.routes
 
 import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.AccessTokenDb
+import com.espero.yaade.server.auth.AccessTokenVerifier
 import com.espero.yaade.server.utils.hashWithSHA256
 import io.vertx.core.json.JsonArray
 import io.vertx.ext.web.RoutingContext
 
-class AccessTokenRoute(private val daoManager: DaoManager) {
+class AccessTokenRoute(
+    private val daoManager: DaoManager,
+    private val accessTokenVerifier: AccessTokenVerifier
+) {
 
     fun createAccessToken(ctx: RoutingContext) {
         val userId = ctx.user().principal().getLong("id")
@@ -32,6 +36,7 @@ class AccessTokenRoute(private val daoManager: DaoManager) {
             throw RuntimeException("No access token found for id $publicId")
         }
         daoManager.accessTokenDao.delete(accessToken.id)
+        accessTokenVerifier.invalidate(accessToken.publicId)
         ctx.end()
     }
 
@@ -1,26 +1,21 @@
 package com.espero.yaade.server.routes
 
-import com.espero.yaade.JDBC_PWD
-import com.espero.yaade.JDBC_URL
-import com.espero.yaade.JDBC_USR
 import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.ConfigDb
 import com.espero.yaade.model.db.UserDb
 import com.espero.yaade.server.Server
 import com.espero.yaade.server.errors.ServerError
 import com.espero.yaade.server.utils.awaitBlocking
+import com.espero.yaade.services.BackupScheduler
 import io.netty.handler.codec.http.HttpResponseStatus
 import io.vertx.core.Vertx
-import io.vertx.core.http.HttpHeaders
+import io.vertx.core.eventbus.ReplyException
+import io.vertx.core.eventbus.ReplyFailure
+import io.vertx.core.impl.logging.LoggerFactory
 import io.vertx.core.json.JsonArray
 import io.vertx.core.json.JsonObject
 import io.vertx.ext.web.RoutingContext
-import io.vertx.kotlin.coroutines.awaitBlocking
 import io.vertx.kotlin.coroutines.coAwait
-import net.lingala.zip4j.ZipFile
-import org.h2.tools.DeleteDbFiles
-import java.util.*
-import java.util.concurrent.Callable
 
 class AdminRoute(
     private val daoManager: DaoManager,
@@ -29,43 +24,65 @@ class AdminRoute(
     private val server: Server
 ) {
 
+    private val log = LoggerFactory.getLogger(AdminRoute::class.java)
+
     suspend fun exportBackup(ctx: RoutingContext) {
-        val fileUuid = UUID.randomUUID().toString()
-        daoManager.dataSource.connection.use { conn ->
-            conn.prepareStatement("BACKUP TO '/tmp/$fileUuid'").executeUpdate()
-        }
+        val exclude = ctx.queryParam("exclude")
+            .flatMap { it.split(",") }
+            .map { it.trim() }
+            .filter { it.isNotEmpty() }
+            .toSet()
 
+        val fileName = if (exclude.isEmpty()) "yaade-db.mv.db.zip" else "yaade-db.sql.zip"
         ctx.response()
-            .putHeader("Content-Disposition", "attachment; filename=\"yaade-db.mv.db.zip\"")
-            .putHeader(HttpHeaders.TRANSFER_ENCODING, "chunked")
-            .sendFile("/tmp/$fileUuid").coAwait()
-
-        vertx.fileSystem().delete("/tmp/$fileUuid")
+            .putHeader("Content-Disposition", "attachment; filename=\"$fileName\"")
+        try {
+            server.backupExporter.export(ctx.response(), exclude).coAwait()
+        } catch (t: Throwable) {
+            // NOTE: once the first chunk is sent, the status cannot change anymore, the
+            // connection is closed so the client does not take the partial zip for a backup
+            if (!ctx.response().headWritten()) {
+                throw t
+            }
+            log.error("Backup export failed", t)
+            ctx.request().connection().close()
+            return
+        }
+        ctx.response().end().coAwait()
     }
 
-    suspend fun importBackup(ctx: RoutingContext) {
-        val f = ctx.fileUploads().iterator().next()
+    suspend fun getBackupProgress(ctx: RoutingContext) {
+        ctx.end(server.backupExporter.progress().encode()).coAwait()
+    }
 
-        // create a backup so that data is not really lost...
-        val fileUuid = UUID.randomUUID().toString()
-        vertx.awaitBlocking {
-            daoManager.dataSource.connection.use { conn ->
-                conn.prepareStatement("BACKUP TO './app/data/$fileUuid'").executeUpdate()
+    suspend fun getScheduledBackups(ctx: RoutingContext) {
+        // NOTE: the scheduler is only deployed if a backup cron expression is configured
+        val stats = try {
+            vertx.eventBus().request<JsonObject>(BackupScheduler.STATS_ADDRESS, null).coAwait()
+                .body()
+        } catch (e: ReplyException) {
+            if (e.failureType() != ReplyFailure.NO_HANDLERS) {
+                throw e
             }
+            JsonObject().put("enabled", false)
         }
-        daoManager.close()
+        ctx.end(stats.encode()).coAwait()
+    }
 
-        DeleteDbFiles.execute("./app/data", "yaade-db", false)
-        awaitBlocking {
-            ZipFile(f.uploadedFileName()).extractAll("./app/data")
-        }
-        vertx.fileSystem().delete(f.uploadedFileName()).coAwait()
+    suspend fun importBackup(ctx: RoutingContext) {
+        val f = ctx.fileUploads().iterator().next()
 
-        daoManager.init(JDBC_URL, JDBC_USR, JDBC_PWD)
+        // NOTE: the replaced database is kept in the data directory, so that data is not
+        // really lost
+        val result = try {
+            vertx.awaitBlocking { server.backupImporter.restore(f.uploadedFileName()) }
+        } finally {
+            vertx.fileSystem().delete(f.uploadedFileName()).coAwait()
+        }
+        server.onDatabaseRestored()
 
-        val response = JsonObject().put(f.fileName(), f.size())
+        val response = JsonObject().put(f.fileName(), f.size()).mergeIn(result)
         ctx.response().end(response.encode()).coAwait()
-        server.restartServer()
     }
 
     suspend fun createUser(ctx: RoutingContext) {
@@ -80,7 +97,9 @@ class AdminRoute(
             )
         }
 
-        val result = daoManager.userDao.createUser(username, groups)
+        val hashedPassword =
+            server.passwordHasher.hash(daoManager.userDao.defaultPassword).coAwait()
+        val result = daoManager.userDao.createUser(username, groups, hashedPassword)
 
         ctx.end(result.toJson().encode())
     }
@@ -95,6 +114,7 @@ class AdminRoute(
             )
         }
         daoManager.userDao.deleteUser(userId)
+        server.accessTokenVerifier.invalidateOwner(userId)
         ctx.end()
     }
 
@@ -106,6 +126,7 @@ class AdminRoute(
             ctx.body().asJsonObject().getJsonObject("data")
                 ?: throw ServerError(HttpResponseStatus.BAD_REQUEST.code(), "No body provided")
         val result = daoManager.userDao.updateUser(userId, data)
+        server.accessTokenVerifier.invalidateOwner(userId)
 
         ctx.end(result.toJson().encode())
     }
@@ -117,13 +138,29 @@ class AdminRoute(
 
     suspend fun resetUserPassword(ctx: RoutingContext) {
         val userId = ctx.pathParam("userId").toLong()
-        vertx.executeBlocking(
-            Callable {
-                daoManager.userDao.resetPassword(userId)
-            }).coAwait()
+        val hashedPassword =
+            server.passwordHasher.hash(daoManager.userDao.defaultPassword).coAwait()
+        daoManager.userDao.resetPassword(userId, hashedPassword)
         ctx.end()
     }
 
+    suspend fun getCronStats(ctx: RoutingContext) {
+        val stats = vertx.eventBus().request<JsonObject>("cronjob.stats", null).coAwait().body()
+        ctx.end(stats.encode()).coAwait()
+    }
+
+    suspend fun getScriptMetrics(ctx: RoutingContext) {
+        val metrics = vertx.eventBus().request<JsonObject>("script.metrics", null).coAwait().body()
+        ctx.end(metrics.encode()).coAwait()
+    }
+
+    suspend fun getAuthMetrics(ctx: RoutingContext) {
+        val metrics = JsonObject()
+            .put("passwordHasher", server.passwordHasher.metrics())
+            .put("login", server.loginThrottle.metrics())
+        ctx.end(metrics.encode()).coAwait()
+    }
+
     suspend fun getConfig(ctx: RoutingContext) {
         val configName = ctx.pathParam("name") ?: throw RuntimeException("No config name provided")
         val config = daoManager.configDao.getByName(configName)
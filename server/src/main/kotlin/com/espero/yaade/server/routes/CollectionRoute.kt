@@ -4,19 +4,27 @@ import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.CollectionDb
 import com.espero.yaade.model.db.JobScriptDb
 import com.espero.yaade.model.db.RequestDb
+import com.espero.yaade.model.db.WebsocketRecordingDb
 import com.espero.yaade.server.errors.ServerError
+import com.espero.yaade.services.CollectionRunner
 import com.espero.yaade.services.OpenApiService
 import com.espero.yaade.services.PostmanParser
+import com.espero.yaade.services.WebsocketRecorder
 import com.j256.ormlite.misc.TransactionManager
 import io.netty.handler.codec.http.HttpResponseStatus
 import io.swagger.v3.parser.OpenAPIV3Parser
+import io.vertx.core.Future
 import io.vertx.core.Vertx
 import io.vertx.core.json.JsonArray
 import io.vertx.core.json.JsonObject
 import io.vertx.ext.web.RoutingContext
 import io.vertx.kotlin.coroutines.coAwait
 
-class CollectionRoute(private val daoManager: DaoManager, private val vertx: Vertx) {
+class CollectionRoute(
+    private val daoManager: DaoManager,
+    private val vertx: Vertx,
+    private val collectionRunner: CollectionRunner
+) {
 
     suspend fun getAllCollections(ctx: RoutingContext) {
         val principal = ctx.user().principal()
@@ -288,22 +296,59 @@ class CollectionRoute(private val daoManager: DaoManager, private val vertx: Ver
         }
 
 
+        val recordings = mutableListOf<WebsocketRecordingDb>()
         TransactionManager.callInTransaction(daoManager.connectionSource) {
-            deleteCollectionAndChildren(collectionToDelete)
+            deleteCollectionAndChildren(collectionToDelete, recordings)
+        }
+        // NOTE: the recorded frames are deleted once the rows are gone
+        for (recording in recordings) {
+            vertx.fileSystem().delete(WebsocketRecorder.path(recording).toString()).recover {
+                Future.succeededFuture()
+            }.coAwait()
         }
 
         ctx.end()
     }
 
-    private fun deleteCollectionAndChildren(collection: JsonObject) {
+    private fun deleteCollectionAndChildren(
+        collection: JsonObject,
+        recordings: MutableList<WebsocketRecordingDb>
+    ) {
         val children = collection.getJsonArray("children", JsonArray())
         for (child in children) {
-            deleteCollectionAndChildren(child as JsonObject)
+            deleteCollectionAndChildren(child as JsonObject, recordings)
         }
         val id = collection.getLong("id")
         daoManager.collectionDao.delete(id)
         daoManager.requestDao.deleteAllInCollection(id)
+        daoManager.requestHistoryDao.deleteAllInCollection(id)
         daoManager.jobScriptDao.deleteAllInCollection(id)
+        daoManager.jobScriptRunDao.deleteAllInCollection(id)
+        recordings.addAll(daoManager.websocketRecordingDao.getInCollection(id))
+        daoManager.websocketRecordingDao.deleteAllInCollection(id)
+    }
+
+    suspend fun runCollection(ctx: RoutingContext) {
+        val id = ctx.pathParam("id").toLong()
+        val userId = ctx.user().principal().getLong("id")
+        val user = daoManager.userDao.getById(userId)
+            ?: throw ServerError(HttpResponseStatus.FORBIDDEN.code(), "User is not logged in")
+        val collection = daoManager.collectionDao.getById(id)
+        if (collection == null || !collection.canRead(user)) {
+            throw ServerError(HttpResponseStatus.NOT_FOUND.code(), "Collection not found")
+        }
+
+        val rawCollections = if (user.isAdmin())
+            daoManager.collectionDao.getAll()
+        else
+            daoManager.collectionDao.getForUser(user)
+        val collectionsWithChildren = createCollectionsResponse(rawCollections)
+        val collectionTree = findCollection(id, JsonArray(collectionsWithChildren))
+            ?: throw ServerError(HttpResponseStatus.NOT_FOUND.code(), "Collection not found")
+
+        val options = ctx.body()?.asJsonObject() ?: JsonObject()
+        val result = collectionRunner.run(collectionTree, options, user)
+        ctx.end(result.encode()).coAwait()
     }
 
     suspend fun importOpenApiCollection(ctx: RoutingContext) {
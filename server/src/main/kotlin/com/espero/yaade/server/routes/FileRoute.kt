@@ -4,14 +4,19 @@ import com.espero.yaade.FILE_STORAGE_PATH
 import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.FileDb
 import com.espero.yaade.server.errors.ServerError
+import com.espero.yaade.server.utils.awaitBlocking
+import com.espero.yaade.services.FileStore
 import io.netty.handler.codec.http.HttpResponseStatus
+import io.vertx.core.Vertx
 import io.vertx.core.json.JsonObject
 import io.vertx.ext.web.RoutingContext
 import io.vertx.kotlin.coroutines.coAwait
 import java.nio.file.Files
 import java.nio.file.Paths
 
-class FileRoute(private val daoManager: DaoManager) {
+class FileRoute(private val daoManager: DaoManager, private val vertx: Vertx) {
+
+    private val fileStore = FileStore(daoManager)
 
     init {
         Files.createDirectories(Paths.get(FILE_STORAGE_PATH))
@@ -33,13 +38,12 @@ class FileRoute(private val daoManager: DaoManager) {
         val file = ctx.fileUploads().first()
         val rawGroups = ctx.request().getFormAttribute("groups") ?: ""
         val groups = rawGroups.split(",").toSet()
-        val fileDb = FileDb.fromCreateRequest(file.fileName(), groups)
-        daoManager.fileDao.create(fileDb)
-
-        Files.move(
-            Paths.get(file.uploadedFileName()),
-            Paths.get(FILE_STORAGE_PATH, fileDb.id.toString())
-        )
+        val fileDb = vertx.awaitBlocking {
+            fileStore.store(
+                Paths.get(file.uploadedFileName()),
+                FileDb.fromCreateRequest(file.fileName(), groups)
+            )
+        }
 
         ctx.end(fileDb.toJson().encode()).coAwait()
     }
@@ -56,7 +60,7 @@ class FileRoute(private val daoManager: DaoManager) {
             throw ServerError(HttpResponseStatus.FORBIDDEN.code(), "File does not exist")
         }
 
-        val filePath = Paths.get(FILE_STORAGE_PATH, id.toString())
+        val filePath = fileStore.pathOf(file)
 
         if (!Files.exists(filePath)) {
             throw ServerError(HttpResponseStatus.NOT_FOUND.code(), "File does not exist")
@@ -77,8 +81,7 @@ class FileRoute(private val daoManager: DaoManager) {
             throw ServerError(HttpResponseStatus.FORBIDDEN.code(), "File does not exist")
         }
 
-        daoManager.fileDao.delete(file.id)
-        Files.deleteIfExists(Paths.get(FILE_STORAGE_PATH, file.id.toString()))
+        vertx.awaitBlocking { fileStore.delete(file) }
 
         ctx.end()
     }
@@ -1,13 +1,21 @@
 package com.espero.yaade.server.routes
 
+import com.espero.yaade.YAADE_HISTORY_ENABLED
 import com.espero.yaade.db.DaoManager
 import com.espero.yaade.server.errors.ServerError
+import com.espero.yaade.services.RequestHistoryWriter
 import com.espero.yaade.services.RequestSender
 import io.netty.handler.codec.http.HttpResponseStatus
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonObject
 import io.vertx.ext.web.RoutingContext
 import io.vertx.kotlin.coroutines.coAwait
 
-class InvokeRoute(private val daoManager: DaoManager, private val requestSender: RequestSender) {
+class InvokeRoute(
+    private val daoManager: DaoManager,
+    private val requestSender: RequestSender,
+    private val vertx: Vertx
+) {
 
     suspend fun invoke(ctx: RoutingContext) {
         val request = ctx.body().asJsonObject().getJsonObject("request")
@@ -33,8 +41,21 @@ class InvokeRoute(private val daoManager: DaoManager, private val requestSender:
             "No data provided"
         )
 
+        val createdAt = System.currentTimeMillis()
         val result = requestSender.send(data, collection, envName, user)
         ctx.end(result.encode()).coAwait()
+
+        val requestId = request.getLong("id")
+        if (YAADE_HISTORY_ENABLED && requestId != null) {
+            val entry = JsonObject()
+                .put("requestId", requestId)
+                .put("collectionId", collectionId)
+                .put("userId", userId)
+                .put("createdAt", createdAt)
+                .put("request", data)
+                .put("response", result)
+            vertx.eventBus().send(RequestHistoryWriter.ADDRESS, entry)
+        }
     }
 
 }
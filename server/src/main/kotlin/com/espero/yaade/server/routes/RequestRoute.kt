@@ -4,6 +4,7 @@ import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.RequestDb
 import com.espero.yaade.server.errors.ServerError
 import io.netty.handler.codec.http.HttpResponseStatus
+import io.vertx.core.json.JsonArray
 import io.vertx.core.json.JsonObject
 import io.vertx.ext.web.RoutingContext
 import io.vertx.kotlin.coroutines.coAwait
@@ -57,6 +58,7 @@ class RequestRoute(private val daoManager: DaoManager) {
         } else {
             request.collectionId = newCollectionId
             daoManager.requestDao.update(request)
+            daoManager.requestHistoryDao.moveToCollection(id, newCollectionId)
             val oldRequests = daoManager.requestDao
                 .getAllInCollection(oldCollectionId)
                 .sortedBy { it.jsonData().getInteger("rank") ?: 0 }
@@ -102,10 +104,37 @@ class RequestRoute(private val daoManager: DaoManager) {
         }
 
         daoManager.requestDao.delete(id)
+        daoManager.requestHistoryDao.deleteAllForRequest(id)
 
         ctx.end().coAwait()
     }
 
+    suspend fun getRequestHistory(ctx: RoutingContext) {
+        val id = ctx.pathParam("id").toLong()
+        val request = daoManager.requestDao.getById(id)
+            ?: throw ServerError(HttpResponseStatus.NOT_FOUND.code(), "Request not found")
+        assertUserCanReadCollection(ctx, request.collectionId)
+
+        val from = ctx.queryParam("from").firstOrNull()?.toLongOrNull()
+        val to = ctx.queryParam("to").firstOrNull()?.toLongOrNull()
+        val status = ctx.queryParam("status").firstOrNull()?.toIntOrNull()
+        val limit = ctx.queryParam("limit").firstOrNull()?.toLongOrNull() ?: 20
+        val offset = ctx.queryParam("offset").firstOrNull()?.toLongOrNull() ?: 0
+
+        val entries = daoManager.requestHistoryDao
+            .getForRequest(id, from, to, status, limit.coerceIn(1, 100), offset)
+            .map { it.toJson() }
+        ctx.end(JsonArray(entries).encode()).coAwait()
+    }
+
+    suspend fun getRequestHistoryEntry(ctx: RoutingContext) {
+        val id = ctx.pathParam("id").toLong()
+        val entry = daoManager.requestHistoryDao.getById(id)
+            ?: throw ServerError(HttpResponseStatus.NOT_FOUND.code(), "History entry not found")
+        assertUserCanReadCollection(ctx, entry.collectionId)
+        ctx.end(entry.toJsonWithData().encode()).coAwait()
+    }
+
     private fun assertUserCanReadCollection(ctx: RoutingContext, collectionId: Long) {
         val collection = daoManager.collectionDao.getById(collectionId)
             ?: throw ServerError(
@@ -3,10 +3,11 @@ package com.espero.yaade.server.routes
 import com.cronutils.model.CronType
 import com.cronutils.model.definition.CronDefinitionBuilder
 import com.cronutils.parser.CronParser
-import com.espero.yaade.SCRIPT_RUNNER_TIMEOUT
+import com.espero.yaade.YAADE_JOB_SCRIPT_RUNS_MAX_AGE
 import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.JobScriptDb
 import com.espero.yaade.server.errors.ServerError
+import com.espero.yaade.services.ScriptTier
 import io.netty.handler.codec.http.HttpResponseStatus
 import io.vertx.core.Vertx
 import io.vertx.core.eventbus.DeliveryOptions
@@ -49,6 +50,7 @@ class ScriptRoute(
             HttpResponseStatus.BAD_REQUEST.code(),
             "Data is required"
         )
+        data.remove("lastResult")
         val script = JobScriptDb(collectionId, ownerId, data)
         daoManager.jobScriptDao.create(script)
         vertx.eventBus().send("cronjob.add", script.toJson())
@@ -74,6 +76,11 @@ class ScriptRoute(
         val oldScript = daoManager.jobScriptDao.getById(body.getLong("id"))
             ?: throw ServerError(HttpResponseStatus.NOT_FOUND.code(), "Script does not exist")
         val newScript = JobScriptDb.fromUpdateRequest(body, oldScript.ownerId)
+        // NOTE: the run summary is only written by runs, results are stored as job script runs
+        val newData = newScript.jsonData()
+            .put("lastResult", oldScript.jsonData().getJsonObject("lastResult"))
+        newData.remove("results")
+        newScript.setJsonData(newData)
         daoManager.jobScriptDao.update(newScript)
         vertx.eventBus().send("cronjob.add", newScript.toJson())
         ctx.end().coAwait()
@@ -84,10 +91,26 @@ class ScriptRoute(
         val script = daoManager.jobScriptDao.getById(id)
             ?: throw ServerError(HttpResponseStatus.NOT_FOUND.code(), "Script does not exist")
         daoManager.jobScriptDao.delete(script.id)
+        daoManager.jobScriptRunDao.deleteAllForScript(script.id)
         vertx.eventBus().send("cronjob.remove", script.id)
         ctx.end()
     }
 
+    suspend fun getScriptRuns(ctx: RoutingContext) {
+        val id = ctx.pathParam("id").toLong()
+        val script = daoManager.jobScriptDao.getById(id)
+            ?: throw ServerError(HttpResponseStatus.NOT_FOUND.code(), "Script does not exist")
+        assertUserCanReadCollection(ctx, script.collectionId)
+
+        val limit = ctx.queryParam("limit").firstOrNull()?.toLongOrNull() ?: 10
+        val offset = ctx.queryParam("offset").firstOrNull()?.toLongOrNull() ?: 0
+
+        val runs = daoManager.jobScriptRunDao
+            .getForScript(id, limit.coerceIn(1, 50), offset)
+            .map { it.toJson() }
+        ctx.end(JsonArray(runs).encode()).coAwait()
+    }
+
     fun takeOwnership(ctx: RoutingContext) {
         val id = ctx.pathParam("id").toLong()
         val newOwnerId = ctx.user().principal().getLong("id")
@@ -172,7 +195,9 @@ class ScriptRoute(
                 jobScript.collectionId,
                 envName ?: "",
                 ownerGroups,
-                additionalEnvData
+                additionalEnvData,
+                ctx.user().principal().getLong("id"),
+                ScriptTier.STRICT
             )
                 ?: throw ServerError(
                     HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
@@ -212,7 +237,9 @@ class ScriptRoute(
             jobScript.collectionId,
             envName,
             ownerGroups,
-            JsonObject()
+            JsonObject(),
+            userId,
+            ScriptTier.STANDARD
         )
             ?: throw ServerError(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Script failed")
         ctx.end(result.encode())
@@ -224,21 +251,26 @@ class ScriptRoute(
         collectionId: Long,
         envName: String?,
         ownerGroups: JsonArray,
-        additionalEnvData: JsonObject
+        additionalEnvData: JsonObject,
+        ownerId: Long?,
+        tier: ScriptTier
     ): JsonObject? {
         var res: JsonObject? = null
         try {
             val msg = JsonObject()
+                .put("scriptId", scriptId)
                 .put("script", scriptString)
                 .put("collectionId", collectionId)
                 .put("envName", envName)
                 .put("ownerGroups", ownerGroups)
                 .put("additionalEnvData", additionalEnvData)
+                .put("ownerId", ownerId)
+                .put("tier", tier.name)
             res = vertx.eventBus()
                 .request<JsonObject>(
                     "script.run",
                     msg,
-                    DeliveryOptions().setSendTimeout(SCRIPT_RUNNER_TIMEOUT + 1000)
+                    DeliveryOptions().setSendTimeout(tier.timeout + 1000)
                 )
                 .coAwait().body()
         } catch (e: Throwable) {
@@ -252,22 +284,17 @@ class ScriptRoute(
             try {
                 // NOTE: we get the latest version of the job script from the database
                 // to reduce the risk of accidental overwriting of other changes
-                val newScript = daoManager.jobScriptDao.getById(scriptId)
-                    ?: throw RuntimeException("Script not found for id: $scriptId")
-                val newData = newScript.jsonData().put("lastRun", System.currentTimeMillis())
-                if (res != null) {
-                    val results = newScript.jsonData().getJsonArray("results") ?: JsonArray()
-                    results.add(res)
-                    val maxResults = newScript.jsonData().getInteger("storeMaxResults") ?: 10
-                    val newResults = JsonArray()
-                    newResults.add(res)
-                    for (i in 0 until maxResults.coerceAtMost(results.size()) - 1) {
-                        newResults.add(results.getJsonObject(i))
+                daoManager.transaction {
+                    val newScript = daoManager.jobScriptDao.getById(scriptId)
+                        ?: throw RuntimeException("Script not found for id: $scriptId")
+                    val run = res?.let {
+                        daoManager.jobScriptRunDao
+                            .record(newScript, it, YAADE_JOB_SCRIPT_RUNS_MAX_AGE)
                     }
-                    newData.put("results", newResults)
-                    newScript.setJsonData(newData)
+                    newScript.setLatestRun(System.currentTimeMillis(), run)
+                    daoManager.jobScriptDao.update(newScript)
+                    run?.let { res?.put("id", it.id) }
                 }
-                daoManager.jobScriptDao.update(newScript)
             } catch (e: Throwable) {
                 e.printStackTrace()
             }
@@ -298,6 +325,7 @@ class ScriptRoute(
         } else {
             script.collectionId = newCollectionId
             daoManager.jobScriptDao.update(script)
+            daoManager.jobScriptRunDao.moveToCollection(script.id, newCollectionId)
             val oldScripts = daoManager.jobScriptDao
                 .getAllInCollection(oldCollectionId)
                 .sortedBy { it.jsonData().getInteger("rank") ?: 0 }
@@ -1,9 +1,9 @@
 package com.espero.yaade.server.routes
 
 import com.espero.yaade.db.DaoManager
+import com.espero.yaade.server.auth.PasswordHasher
 import com.espero.yaade.server.errors.ServerError
 import com.espero.yaade.services.SecretInterpolator
-import com.password4j.Password
 import io.netty.handler.codec.http.HttpResponseStatus
 import io.netty.handler.codec.http.QueryStringDecoder
 import io.vertx.core.MultiMap
@@ -13,7 +13,11 @@ import io.vertx.ext.web.RoutingContext
 import io.vertx.ext.web.client.WebClient
 import io.vertx.kotlin.coroutines.coAwait
 
-class UserRoute(private val daoManager: DaoManager, private val vertx: Vertx) {
+class UserRoute(
+    private val daoManager: DaoManager,
+    private val vertx: Vertx,
+    private val passwordHasher: PasswordHasher
+) {
 
     private val secretInterpolator = SecretInterpolator(daoManager)
 
@@ -34,11 +38,11 @@ class UserRoute(private val daoManager: DaoManager, private val vertx: Vertx) {
 
         val user = daoManager.userDao.getById(userId)
 
-        if (user == null || !Password.check(currentPassword, user.password).withArgon2()) {
+        if (user == null || !passwordHasher.check(currentPassword, user.password).coAwait()) {
             throw ServerError(HttpResponseStatus.FORBIDDEN.code(), "Wrong current password")
         }
 
-        user.password = Password.hash(newPassword).addRandomSalt().withArgon2().result
+        user.password = passwordHasher.hash(newPassword).coAwait()
 
         daoManager.userDao.update(user)
 
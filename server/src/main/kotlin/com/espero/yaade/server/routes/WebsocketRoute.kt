@@ -1,20 +1,40 @@
 package com.espero.yaade.server.routes
 
+import com.espero.yaade.YAADE_WS_BATCH_WINDOW
+import com.espero.yaade.YAADE_WS_CLIENT_MAX_CONNECTIONS
+import com.espero.yaade.YAADE_WS_MAX_CHANNELS
+import com.espero.yaade.YAADE_WS_RECORDING_MAX_SIZE
+import com.espero.yaade.YAADE_WS_RELAY_DROP_ON_OVERFLOW
+import com.espero.yaade.YAADE_WS_RELAY_MAX_QUEUE_SIZE
 import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.UserDb
+import com.espero.yaade.model.db.WebsocketRecordingDb
 import com.espero.yaade.server.errors.ServerError
+import com.espero.yaade.services.ScriptEventStream
 import com.espero.yaade.services.SecretInterpolator
+import com.espero.yaade.services.WebsocketMultiplexer
+import com.espero.yaade.services.WebsocketRecorder
+import com.espero.yaade.services.WebsocketRecording
+import com.espero.yaade.services.WebsocketRelay
+import com.espero.yaade.services.WebsocketReplay
 import io.netty.handler.codec.http.HttpResponseStatus
 import io.vertx.core.Future
 import io.vertx.core.Vertx
+import io.vertx.core.eventbus.MessageConsumer
 import io.vertx.core.http.ServerWebSocket
 import io.vertx.core.http.WebSocket
+import io.vertx.core.http.WebSocketClientOptions
 import io.vertx.core.http.WebSocketConnectOptions
 import io.vertx.core.impl.logging.LoggerFactory
+import io.vertx.core.json.JsonArray
 import io.vertx.core.json.JsonObject
+import io.vertx.ext.web.RoutingContext
+import io.vertx.kotlin.coroutines.coAwait
 import java.net.URI
+import java.nio.file.Files
 import java.util.*
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Callable
+import java.util.zip.GZIPInputStream
 
 class WebsocketRoute(
     private val vertx: Vertx,
@@ -23,9 +43,14 @@ class WebsocketRoute(
 
     private val log = LoggerFactory.getLogger(WebsocketRoute::class.java)
 
-    private val websockets = ConcurrentHashMap<String, WebSocket>()
     private val secretInterpolator = SecretInterpolator(daoManager)
 
+    // NOTE: one client for all upstream sockets, so connections to the same host share
+    // the connection pool of the client
+    private val client = vertx.createWebSocketClient(
+        WebSocketClientOptions().setMaxConnections(YAADE_WS_CLIENT_MAX_CONNECTIONS)
+    )
+
     private fun wsMessage(type: String, result: JsonObject): String {
         return JsonObject().put("type", type).put("result", result).encode()
     }
@@ -33,40 +58,48 @@ class WebsocketRoute(
     fun handle(ws: ServerWebSocket, user: UserDb) {
         try {
             if (ws.path() == "/api/ws") {
-                val wsId = UUID.randomUUID().toString()
+                val multiplexer = WebsocketMultiplexer(
+                    vertx,
+                    ws,
+                    YAADE_WS_RELAY_MAX_QUEUE_SIZE,
+                    YAADE_WS_RELAY_DROP_ON_OVERFLOW,
+                    YAADE_WS_MAX_CHANNELS
+                )
+                val scriptSubscriptions = HashMap<Long, MessageConsumer<JsonObject>>()
+                val replays = HashMap<String, WebsocketReplay>()
                 ws.accept()
                 ws.closeHandler {
-                    websockets[wsId]?.close()
-                    websockets.remove(wsId)
+                    replays.values.toList().forEach { it.cancel() }
+                    multiplexer.closeAll()
+                    scriptSubscriptions.values.forEach { it.unregister() }
+                    scriptSubscriptions.clear()
                 }
                 ws.textMessageHandler { msg ->
                     val data = JsonObject(msg)
                     when (data.getString("type")) {
-                        "ws-connect" -> connect(data.getJsonObject("request"), user, ws)
+                        "ws-connect" -> connect(data.getJsonObject("request"), user, multiplexer)
                             .onSuccess {
-                                websockets[wsId] = it
-                                it.closeHandler {
-                                    if (websockets.containsKey(wsId)) {
-                                        ws.writeTextMessage(
-                                            wsMessage(
-                                                "ws-close",
-                                                JsonObject()
-                                                    .put("status", "error")
-                                                    .put("err", "WebSocket closed unexpectedly")
-                                                    .put("wsId", wsId)
-                                            )
-                                        )
-                                        websockets.remove(wsId)
-                                    }
-                                }
-                                it.textMessageHandler { msg ->
+                                if (!multiplexer.canOpen() || ws.isClosed) {
+                                    it.close()
                                     ws.writeTextMessage(
                                         wsMessage(
-                                            "ws-read", JsonObject()
-                                                .put("wsId", wsId)
-                                                .put("message", msg)
+                                            "ws-connect-result",
+                                            JsonObject()
+                                                .put("status", "error")
+                                                .put("err", "Too many open WebSockets")
+                                                .put("metaData", data.getJsonObject("metaData"))
                                         )
                                     )
+                                    return@onSuccess
+                                }
+                                val batchWindow = (data.getLong("batchWindow")
+                                    ?: YAADE_WS_BATCH_WINDOW).coerceIn(0, MAX_BATCH_WINDOW)
+                                val recording = if (data.getBoolean("record", false))
+                                    startRecording(data.getJsonObject("request"), user)
+                                else
+                                    null
+                                val relay = multiplexer.open(it, batchWindow, recording) { relay ->
+                                    onChannelClosed(ws, replays, relay)
                                 }
                                 ws.writeTextMessage(
                                     wsMessage(
@@ -74,7 +107,8 @@ class WebsocketRoute(
                                         JsonObject()
                                             .put("status", "success")
                                             .put("metaData", data.getJsonObject("metaData"))
-                                            .put("wsId", wsId)
+                                            .put("wsId", relay.channelId)
+                                            .put("recordingId", recording?.recordingId)
                                     )
                                 )
                             }.onFailure {
@@ -88,14 +122,16 @@ class WebsocketRoute(
                                             .put("metaData", data.getJsonObject("metaData"))
                                     )
                                 )
-                                websockets.remove(wsId)
-                                ws.close()
                             }
 
                         "ws-write" -> {
+                            val writeData = data.getJsonObject("data", JsonObject())
+                            val wsId = writeData.getString("wsId") ?: data.getString("wsId")
                             handleWrite(
+                                multiplexer,
                                 wsId,
-                                data.getJsonObject("data", JsonObject()).getString("message")
+                                writeData.getString("message"),
+                                writeData.getBoolean("binary", false)
                             ).onSuccess {
                                 ws.writeTextMessage(
                                     wsMessage(
@@ -106,18 +142,44 @@ class WebsocketRoute(
                                     )
                                 )
                             }.onFailure {
+                                ws.writeTextMessage(
+                                    wsMessage(
+                                        "ws-write-result", JsonObject()
+                                            .put("status", "error")
+                                            .put("err", it.message)
+                                            .put("wsId", wsId)
+                                            .put("metaData", data.getJsonObject("metaData"))
+                                    )
+                                )
+                            }
+                        }
+
+                        "ws-stats" -> {
+                            val wsId = data.getString("wsId")
+                            ws.writeTextMessage(
                                 wsMessage(
-                                    "ws-write-result", JsonObject()
-                                        .put("status", "error")
-                                        .put("err", it.message)
+                                    "ws-stats-result", JsonObject()
                                         .put("wsId", wsId)
+                                        .put("stats", multiplexer.get(wsId)?.stats())
+                                        .put("channels", JsonArray(multiplexer.channelIds()))
                                         .put("metaData", data.getJsonObject("metaData"))
                                 )
-                            }
+                            )
                         }
 
-                        "ws-disconnect" -> disconnect(wsId)
-                            .onSuccess {
+                        "ws-replay" -> replay(data, user, ws, multiplexer, replays)
+
+                        "ws-disconnect" -> {
+                            val wsId = data.getString("wsId")
+                            val replay = wsId?.let { replays.remove(it) }
+                            replay?.cancel()
+                            val disconnected = disconnect(multiplexer, wsId)
+                            // NOTE: replays into the browser have no upstream socket
+                            val result = if (replay != null)
+                                disconnected.otherwise { null }
+                            else
+                                disconnected
+                            result.onSuccess {
                                 ws.writeTextMessage(
                                     wsMessage(
                                         "ws-disconnect-result", JsonObject()
@@ -126,16 +188,47 @@ class WebsocketRoute(
                                             .put("metaData", data.getJsonObject("metaData"))
                                     )
                                 )
+                            }.onFailure {
+                                ws.writeTextMessage(
+                                    wsMessage(
+                                        "ws-disconnect-result", JsonObject()
+                                            .put("status", "error")
+                                            .put("err", it.message)
+                                            .put("wsId", wsId)
+                                            .put("metaData", data.getJsonObject("metaData"))
+                                    )
+                                )
+                            }
+                        }
+
+                        "script-subscribe" -> {
+                            val scriptId = data.getLong("scriptId")
+                            val result = JsonObject()
+                                .put("scriptId", scriptId)
+                                .put("metaData", data.getJsonObject("metaData"))
+                            if (canSubscribeToScript(scriptId, user)) {
+                                scriptSubscriptions.computeIfAbsent(scriptId) {
+                                    subscribeToScript(it, ws)
+                                }
+                                result.put("status", "success")
+                            } else {
+                                result.put("status", "error").put("err", "Script not found")
                             }
-                            .onFailure {
+                            ws.writeTextMessage(wsMessage("script-subscribe-result", result))
+                        }
+
+                        "script-unsubscribe" -> {
+                            val scriptId = data.getLong("scriptId")
+                            scriptSubscriptions.remove(scriptId)?.unregister()
+                            ws.writeTextMessage(
                                 wsMessage(
-                                    "ws-disconnect-result", JsonObject()
-                                        .put("status", "error")
-                                        .put("err", it.message)
-                                        .put("wsId", wsId)
+                                    "script-unsubscribe-result", JsonObject()
+                                        .put("status", "success")
+                                        .put("scriptId", scriptId)
                                         .put("metaData", data.getJsonObject("metaData"))
                                 )
-                            }
+                            )
+                        }
                     }
                 }
             } else {
@@ -150,7 +243,7 @@ class WebsocketRoute(
     private fun connect(
         request: JsonObject,
         user: UserDb,
-        ws: ServerWebSocket,
+        multiplexer: WebsocketMultiplexer,
     ): Future<WebSocket> {
         if (request.getString("type") != "WS") {
             throw ServerError(HttpResponseStatus.BAD_REQUEST.code(), "Request type must be WS")
@@ -162,8 +255,10 @@ class WebsocketRoute(
                 HttpResponseStatus.NOT_FOUND.code(),
                 "No collection found for ID: $collectionId"
             )
+        if (!multiplexer.canOpen()) {
+            return Future.failedFuture("Too many open WebSockets")
+        }
         if (!collection.canRead(user)) {
-            ws.close()
             return Future.failedFuture(
                 ServerError(
                     HttpResponseStatus.FORBIDDEN.code(),
@@ -205,24 +300,250 @@ class WebsocketRoute(
                 options.addHeader(header.getString("key"), header.getString("value"))
             }
         }
-        return vertx.createWebSocketClient().connect(options)
+        return client.connect(options)
     }
 
-    private fun handleWrite(wsId: String, data: String): Future<Void> {
-        if (!websockets.containsKey(wsId)) {
-            return Future.failedFuture("WebSocket not found")
+    private fun onChannelClosed(
+        ws: ServerWebSocket,
+        replays: MutableMap<String, WebsocketReplay>,
+        relay: WebsocketRelay
+    ) {
+        replays.remove(relay.channelId)?.cancel()
+        ws.writeTextMessage(
+            wsMessage(
+                "ws-close",
+                JsonObject()
+                    .put("status", "error")
+                    .put("err", "WebSocket closed unexpectedly")
+                    .put("wsId", relay.channelId)
+                    .put("stats", relay.stats())
+            )
+        )
+    }
+
+    // NOTE: the uri is stored as entered, without interpolated secrets. No recording is started
+    // while a backup is imported, it would be stored in the database that is replaced
+    private fun startRecording(request: JsonObject, user: UserDb): WebsocketRecording? {
+        if (daoManager.isRestoring()) {
+            log.warn("Not recording websocket while a backup is imported")
+            return null
+        }
+        val recording = WebsocketRecordingDb(
+            request.getLong("collectionId"),
+            user.id,
+            request.getJsonObject("data")?.getString("uri") ?: ""
+        )
+        daoManager.websocketRecordingDao.create(recording)
+        return WebsocketRecording(
+            vertx,
+            recording.id,
+            recording.recordingFileName(),
+            YAADE_WS_RECORDING_MAX_SIZE
+        )
+    }
+
+    // NOTE: without a request, the frames received from the upstream socket are replayed
+    // into the browser. With a request, the frames that were sent to the upstream socket are
+    // replayed against the new target and its frames are relayed like for ws-connect
+    private fun replay(
+        data: JsonObject,
+        user: UserDb,
+        ws: ServerWebSocket,
+        multiplexer: WebsocketMultiplexer,
+        replays: MutableMap<String, WebsocketReplay>
+    ) {
+        val metaData = data.getJsonObject("metaData")
+        val speed = (data.getDouble("speed") ?: 1.0).coerceAtLeast(0.0)
+        val request = data.getJsonObject("request")
+        val recording = data.getLong("recordingId")?.let {
+            daoManager.websocketRecordingDao.getById(it)
+        }
+        val collection = recording?.let { daoManager.collectionDao.getById(it.collectionId) }
+        if (recording == null || collection == null || !collection.canRead(user)) {
+            ws.writeTextMessage(
+                wsMessage(
+                    "ws-replay-result", JsonObject()
+                        .put("status", "error")
+                        .put("err", "Recording not found")
+                        .put("metaData", metaData)
+                )
+            )
+            return
+        }
+        val onDone = { result: JsonObject ->
+            replays.remove(result.getString("wsId"))
+            ws.writeTextMessage(
+                wsMessage(
+                    "ws-replay-result",
+                    result.put("recordingId", recording.id).put("metaData", metaData)
+                )
+            )
+        }
+        readRecording(recording, if (request == null) "in" else "out")
+            .compose { frames ->
+                if (request == null) {
+                    val replayId = UUID.randomUUID().toString()
+                    val target = object : WebsocketReplay.Target {
+                        override fun isWritable() = multiplexer.isClientWritable()
+                        override fun onDrain(handler: () -> Unit) =
+                            multiplexer.onClientDrain(handler)
+
+                        override fun send(message: String, binary: Boolean) {
+                            val result = JsonObject().put("wsId", replayId).put("message", message)
+                            if (binary) {
+                                result.put("binary", true)
+                            }
+                            ws.writeTextMessage(wsMessage("ws-read", result))
+                        }
+                    }
+                    Future.succeededFuture(
+                        WebsocketReplay(vertx, replayId, frames, speed, target, onDone)
+                    )
+                } else {
+                    connect(request, user, multiplexer).map { upstream ->
+                        val relay = multiplexer.open(upstream, 0, null) {
+                            onChannelClosed(ws, replays, it)
+                        }
+                        val target = object : WebsocketReplay.Target {
+                            override fun isWritable() = relay.isWritable()
+                            override fun onDrain(handler: () -> Unit) = relay.onDrain(handler)
+                            override fun send(message: String, binary: Boolean) {
+                                relay.write(message, binary)
+                            }
+                        }
+                        WebsocketReplay(vertx, relay.channelId, frames, speed, target, onDone)
+                    }
+                }
+            }.onSuccess {
+                replays[it.replayId] = it
+                ws.writeTextMessage(
+                    wsMessage(
+                        "ws-replay-started", JsonObject()
+                            .put("status", "success")
+                            .put("wsId", it.replayId)
+                            .put("recordingId", recording.id)
+                            .put("metaData", metaData)
+                    )
+                )
+                it.start()
+            }.onFailure {
+                log.info("Failed to replay websocket recording: ${it.message}")
+                ws.writeTextMessage(
+                    wsMessage(
+                        "ws-replay-result", JsonObject()
+                            .put("status", "error")
+                            .put("err", "Replay failed")
+                            .put("recordingId", recording.id)
+                            .put("metaData", metaData)
+                    )
+                )
+            }
+    }
+
+    private fun readRecording(
+        recording: WebsocketRecordingDb,
+        direction: String
+    ): Future<List<JsonObject>> {
+        return vertx.executeBlocking(Callable {
+            val path = WebsocketRecorder.path(recording)
+            if (!Files.exists(path)) {
+                return@Callable emptyList<JsonObject>()
+            }
+            GZIPInputStream(Files.newInputStream(path)).bufferedReader().useLines { lines ->
+                lines.filter { it.isNotBlank() }
+                    .map { JsonObject(it) }
+                    .filter { it.getString("d") == direction }
+                    .toList()
+            }
+        }, false)
+    }
+
+    suspend fun getRecordings(ctx: RoutingContext) {
+        val userId = ctx.user().principal().getLong("id")
+        val user = daoManager.userDao.getById(userId)
+            ?: throw ServerError(HttpResponseStatus.FORBIDDEN.code(), "User does not exist")
+        val collectionId = ctx.queryParam("collectionId").firstOrNull()?.toLong()
+        val recordings = if (collectionId != null)
+            daoManager.websocketRecordingDao.getInCollection(collectionId)
+        else
+            daoManager.websocketRecordingDao.getAll()
+        val readable = HashMap<Long, Boolean>()
+        val result = recordings.filter { recording ->
+            readable.getOrPut(recording.collectionId) {
+                daoManager.collectionDao.getById(recording.collectionId)?.canRead(user) ?: false
+            }
+        }
+        ctx.end(JsonArray(result.map { it.toJson() }).encode()).coAwait()
+    }
+
+    suspend fun deleteRecording(ctx: RoutingContext) {
+        val id = ctx.pathParam("id").toLong()
+        val userId = ctx.user().principal().getLong("id")
+        val user = daoManager.userDao.getById(userId)
+            ?: throw ServerError(HttpResponseStatus.FORBIDDEN.code(), "User does not exist")
+        val recording = daoManager.websocketRecordingDao.getById(id)
+        val collection = recording?.let { daoManager.collectionDao.getById(it.collectionId) }
+        if (recording == null || collection == null || !collection.canRead(user)) {
+            throw ServerError(HttpResponseStatus.NOT_FOUND.code(), "Recording does not exist")
+        }
+        daoManager.websocketRecordingDao.delete(id)
+        vertx.fileSystem().delete(WebsocketRecorder.path(recording).toString()).recover {
+            Future.succeededFuture()
+        }.coAwait()
+        ctx.end().coAwait()
+    }
+
+    private fun canSubscribeToScript(scriptId: Long?, user: UserDb): Boolean {
+        if (scriptId == null) {
+            return false
+        }
+        val script = daoManager.jobScriptDao.getById(scriptId) ?: return false
+        val collection = daoManager.collectionDao.getById(script.collectionId) ?: return false
+        return collection.canRead(user)
+    }
+
+    // NOTE: events of a script run are relayed as long as the client keeps up. If the write
+    // queue of the socket is full, batches are dropped and the count is sent with the next one
+    private fun subscribeToScript(
+        scriptId: Long,
+        ws: ServerWebSocket
+    ): MessageConsumer<JsonObject> {
+        var dropped = 0L
+        return vertx.eventBus().consumer(ScriptEventStream.address(scriptId)) { msg ->
+            val events = msg.body()
+            if (ws.isClosed) {
+                return@consumer
+            }
+            if (ws.writeQueueFull()) {
+                dropped += events.getJsonArray("events")?.size() ?: 0
+                return@consumer
+            }
+            ws.writeTextMessage(wsMessage("script-events", events.put("relayDropped", dropped)))
         }
-        if (websockets[wsId]!!.isClosed) {
-            return Future.failedFuture("WebSocket is closed")
+    }
+
+    private fun handleWrite(
+        multiplexer: WebsocketMultiplexer,
+        wsId: String?,
+        data: String?,
+        binary: Boolean
+    ): Future<Void> {
+        val relay = multiplexer.get(wsId) ?: return Future.failedFuture("WebSocket not found")
+        if (data == null) {
+            return Future.failedFuture("No message provided")
         }
-        return websockets[wsId]!!.writeTextMessage(data)
+        return relay.write(data, binary)
     }
 
-    private fun disconnect(wsId: String): Future<Void> {
-        if (!websockets.containsKey(wsId)) {
+    private fun disconnect(multiplexer: WebsocketMultiplexer, wsId: String?): Future<Void> {
+        if (!multiplexer.close(wsId)) {
             return Future.failedFuture("WebSocket not found")
         }
-        websockets.remove(wsId)?.close()
         return Future.succeededFuture()
     }
+
+    companion object {
+
+        const val MAX_BATCH_WINDOW = 1000L
+    }
 }
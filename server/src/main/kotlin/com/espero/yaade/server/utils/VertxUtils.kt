@@ -1,6 +1,6 @@
 package com.espero.yaade.server.utils
 
-import com.espero.yaade.db.DaoManager
+import com.espero.yaade.server.auth.AccessTokenVerifier
 import com.espero.yaade.server.errors.ServerError
 import com.fasterxml.jackson.core.StreamReadConstraints
 import io.netty.handler.codec.http.HttpResponseStatus
@@ -79,26 +79,50 @@ fun Operation.userCoroutineHandler(
     authorizedCoroutineHandler(coroutineVerticle, false, handler)
 }
 
+// NOTE: with limitConcurrency, only a limited number of calls per token may run at the same
+// time, so one pipeline can not take up all script runners
 fun Operation.tokenCoroutineHandler(
     coroutineVerticle: CoroutineVerticle,
-    daoManager: DaoManager,
+    verifier: AccessTokenVerifier,
+    limitConcurrency: Boolean,
     handler: suspend (ctx: RoutingContext) -> Unit
 ) {
     this.handler { ctx ->
-        val token = ctx.request().getHeader("Authorization")?.replace("Bearer ", "")
-            ?: throw ServerError(HttpResponseStatus.UNAUTHORIZED.code(), "No token provided")
-        val hashedSecret = hashWithSHA256(token)
-        val accessToken = daoManager.accessTokenDao.getByHashedSecret(hashedSecret)
-            ?: throw ServerError(HttpResponseStatus.UNAUTHORIZED.code(), "Invalid token")
-        val user = daoManager.userDao.getById(accessToken.ownerId)
-            ?: throw ServerError(HttpResponseStatus.UNAUTHORIZED.code(), "Invalid token")
-        ctx.setUser(user.toSessionUser())
         coroutineVerticle.launch {
+            var acquiredTokenId: Long? = null
             try {
+                val token = ctx.request().getHeader("Authorization")?.replace("Bearer ", "")
+                    ?: throw ServerError(
+                        HttpResponseStatus.UNAUTHORIZED.code(),
+                        "No token provided"
+                    )
+                val accessToken = verifier.verify(token)
+                val retryAfter = verifier.tryAcquireRate(accessToken.id)
+                if (retryAfter > 0) {
+                    ctx.response().putHeader("Retry-After", ((retryAfter + 999) / 1000).toString())
+                    throw ServerError(
+                        HttpResponseStatus.TOO_MANY_REQUESTS.code(),
+                        "Rate limit of the token exceeded"
+                    )
+                }
+                if (limitConcurrency) {
+                    if (!verifier.tryAcquireCall(accessToken.id)) {
+                        throw ServerError(
+                            HttpResponseStatus.TOO_MANY_REQUESTS.code(),
+                            "Too many concurrent calls with this token"
+                        )
+                    }
+                    acquiredTokenId = accessToken.id
+                }
+                ctx.setUser(accessToken.user.toSessionUser())
                 handler(ctx)
             } catch (t: Throwable) {
-                t.printStackTrace()
+                if (t !is ServerError) {
+                    t.printStackTrace()
+                }
                 ctx.fail(t)
+            } finally {
+                acquiredTokenId?.let { verifier.releaseCall(it) }
             }
         }
     }
@@ -0,0 +1,335 @@
+package com.espero.yaade.services
+
+import com.espero.yaade.db.DaoManager
+import com.espero.yaade.server.errors.ServerError
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.vertx.core.Future
+import io.vertx.core.Vertx
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.http.HttpServerResponse
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import org.h2.engine.Database
+import org.h2.engine.Session
+import org.h2.jdbc.JdbcConnection
+import org.h2.mvstore.MVStore
+import org.h2.mvstore.db.MVTableEngine
+import org.h2.store.fs.FileUtils
+import java.io.*
+import java.security.DigestInputStream
+import java.security.DigestOutputStream
+import java.security.MessageDigest
+import java.sql.Connection
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+
+// NOTE: backups are written on a dedicated worker pool straight into the chunked response.
+// A full backup streams the pages of the database file like BACKUP TO does, but without
+// the copy in /tmp. A backup that excludes tables is written as an sql script instead,
+// because the pages of a single table cannot be separated from the file
+class BackupExporter(vertx: Vertx, private val daoManager: DaoManager) {
+
+    private val executor = vertx.createSharedWorkerExecutor(
+        POOL_NAME, POOL_SIZE, MAX_EXPORT_TIME, TimeUnit.MILLISECONDS
+    )
+    private val running = ConcurrentHashMap<String, Progress>()
+
+    fun export(response: HttpServerResponse, exclude: Set<String>): Future<JsonObject> {
+        val unknown = exclude - EXCLUDABLE_TABLES.keys
+        if (unknown.isNotEmpty()) {
+            return Future.failedFuture(
+                ServerError(
+                    HttpResponseStatus.BAD_REQUEST.code(),
+                    "Tables cannot be excluded: ${unknown.joinToString()}"
+                )
+            )
+        }
+        val progress = Progress(UUID.randomUUID().toString(), exclude)
+        running[progress.id] = progress
+        response.isChunked = true
+        return executor.executeBlocking(Callable {
+            ZipOutputStream(ResponseOutputStream(response)).use { zip ->
+                daoManager.dataSource.connection.use { conn ->
+                    if (exclude.isEmpty()) {
+                        writeDatabaseFile(conn, zip, progress)
+                    } else {
+                        writeScript(conn, zip, exclude, progress)
+                    }
+                }
+            }
+            progress.toJson()
+        }, false).onComplete { running.remove(progress.id) }
+    }
+
+    // NOTE: the version of the database file changes with every commit, an unchanged version
+    // means that a new backup would be identical to the last one
+    fun databaseVersion(): Future<Long> {
+        return executor.executeBlocking(Callable {
+            daoManager.dataSource.connection.use { conn ->
+                storeOf(databaseOf(conn)).mvStore.currentVersion
+            }
+        }, false)
+    }
+
+    fun exportToFile(file: File): Future<JsonObject> {
+        val progress = Progress(UUID.randomUUID().toString(), emptySet())
+        running[progress.id] = progress
+        return executor.executeBlocking(Callable {
+            val digest = MessageDigest.getInstance("SHA-256")
+            val output = DigestOutputStream(FileOutputStream(file).buffered(), digest)
+            ZipOutputStream(output).use { zip ->
+                daoManager.dataSource.connection.use { conn ->
+                    writeDatabaseFile(conn, zip, progress)
+                }
+            }
+            progress.toJson()
+                .put("size", file.length())
+                .put("checksum", digest.digest().joinToString("") { "%02x".format(it) })
+        }, false).onComplete { running.remove(progress.id) }
+    }
+
+    // NOTE: reading every entry checks the crc of the zip, the digest covers the whole file
+    fun verifyFile(file: File, checksum: String): Future<Boolean> {
+        return executor.executeBlocking(Callable {
+            val digest = MessageDigest.getInstance("SHA-256")
+            DigestInputStream(FileInputStream(file).buffered(), digest).use { input ->
+                val zip = ZipInputStream(input)
+                val buffer = ByteArray(COPY_BUFFER_SIZE)
+                while (zip.nextEntry != null) {
+                    while (zip.read(buffer) >= 0) {
+                        // read to the end of the entry
+                    }
+                }
+                while (input.read(buffer) >= 0) {
+                    // read the central directory
+                }
+            }
+            digest.digest().joinToString("") { "%02x".format(it) } == checksum
+        }, false)
+    }
+
+    fun progress(): JsonArray {
+        return JsonArray(running.values.map { it.toJson() })
+    }
+
+    fun close() {
+        executor.close()
+    }
+
+    private fun databaseOf(conn: Connection): Database {
+        return (conn.unwrap(JdbcConnection::class.java).session as Session).database
+    }
+
+    private fun storeOf(database: Database): MVTableEngine.Store {
+        return database.store ?: throw ServerError(
+            HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
+            "Database is not persistent"
+        )
+    }
+
+    private fun writeDatabaseFile(conn: Connection, zip: ZipOutputStream, progress: Progress) {
+        val database = databaseOf(conn)
+        val store = storeOf(database)
+        store.flush()
+        val mvStore = store.mvStore
+        progress.totalBytes = mvStore.fileStore.size()
+        beginCopy(mvStore)
+        try {
+            zip.putNextEntry(ZipEntry(FileUtils.getName(database.name) + DATABASE_FILE_SUFFIX))
+            store.inputStream.use { copy(it, zip, progress) }
+            zip.closeEntry()
+        } finally {
+            endCopy(mvStore)
+        }
+    }
+
+    // NOTE: like BACKUP TO, space is not reused while the file is copied, so pages written
+    // during the copy do not overwrite pages of the copied version. Copies can overlap, e.g.
+    // a scheduled backup and a manual export, so space is reused again after the last one
+    private fun beginCopy(mvStore: MVStore) {
+        synchronized(COPY_LOCK) {
+            if (runningCopies == 0) {
+                reuseSpace = mvStore.reuseSpace
+                mvStore.reuseSpace = false
+            }
+            runningCopies++
+        }
+    }
+
+    private fun endCopy(mvStore: MVStore) {
+        synchronized(COPY_LOCK) {
+            runningCopies--
+            if (runningCopies == 0) {
+                mvStore.reuseSpace = reuseSpace
+            }
+        }
+    }
+
+    private fun writeScript(
+        conn: Connection,
+        zip: ZipOutputStream,
+        exclude: Set<String>,
+        progress: Progress
+    ) {
+        val excludedTables = exclude.map { EXCLUDABLE_TABLES.getValue(it) }.toSet()
+        val tables = mutableListOf<String>()
+        conn.createStatement().use { stmt ->
+            stmt.executeQuery(
+                "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC'"
+            ).use { rs ->
+                while (rs.next()) {
+                    val table = rs.getString(1)
+                    if (!excludedTables.contains(table.uppercase())) {
+                        tables.add("PUBLIC.\"$table\"")
+                    }
+                }
+            }
+        }
+        zip.putNextEntry(ZipEntry(SCRIPT_FILE))
+        if (tables.isEmpty()) {
+            zip.closeEntry()
+            return
+        }
+        conn.createStatement().use { stmt ->
+            stmt.fetchSize = SCRIPT_FETCH_SIZE
+            stmt.executeQuery("SCRIPT TABLE ${tables.joinToString()}").use { rs ->
+                while (rs.next()) {
+                    val statement = rs.getString(1)
+                    if (statement.startsWith(INSERT_PREFIX)) {
+                        progress.currentTable = statement
+                            .substring(INSERT_PREFIX.length)
+                            .substringBefore('(')
+                    }
+                    val bytes = (statement + ";\n").toByteArray()
+                    zip.write(bytes)
+                    progress.bytesWritten += bytes.size
+                    progress.statements++
+                }
+            }
+        }
+        zip.closeEntry()
+    }
+
+    private fun copy(input: InputStream, output: OutputStream, progress: Progress) {
+        val buffer = ByteArray(COPY_BUFFER_SIZE)
+        while (true) {
+            val read = input.read(buffer)
+            if (read < 0) {
+                return
+            }
+            output.write(buffer, 0, read)
+            progress.bytesWritten += read
+        }
+    }
+
+    class Progress(val id: String, private val exclude: Set<String>) {
+
+        private val startedAt = System.currentTimeMillis()
+
+        @Volatile
+        var bytesWritten = 0L
+
+        @Volatile
+        var totalBytes: Long? = null
+
+        @Volatile
+        var statements = 0L
+
+        @Volatile
+        var currentTable: String? = null
+
+        fun toJson(): JsonObject {
+            return JsonObject()
+                .put("id", id)
+                .put("exclude", JsonArray(exclude.toList()))
+                .put("bytesWritten", bytesWritten)
+                .put("totalBytes", totalBytes)
+                .put("statements", statements)
+                .put("currentTable", currentTable)
+                .put("duration", System.currentTimeMillis() - startedAt)
+        }
+    }
+
+    // NOTE: writes are called from the worker thread. When the write queue of the response
+    // is full, the worker waits for the drain, so a slow client does not fill the memory
+    private class ResponseOutputStream(private val response: HttpServerResponse) :
+        OutputStream() {
+
+        private var chunk = Buffer.buffer(CHUNK_SIZE)
+
+        override fun write(b: Int) {
+            chunk.appendByte(b.toByte())
+            if (chunk.length() >= CHUNK_SIZE) {
+                flush()
+            }
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            chunk.appendBytes(b, off, len)
+            if (chunk.length() >= CHUNK_SIZE) {
+                flush()
+            }
+        }
+
+        override fun flush() {
+            if (chunk.length() == 0) {
+                return
+            }
+            if (response.closed()) {
+                throw IOException("Connection was closed")
+            }
+            response.write(chunk)
+            chunk = Buffer.buffer(CHUNK_SIZE)
+            awaitDrain()
+        }
+
+        override fun close() {
+            flush()
+        }
+
+        private fun awaitDrain() {
+            if (!response.writeQueueFull()) {
+                return
+            }
+            val drained = CompletableFuture<Void>()
+            response.drainHandler { drained.complete(null) }
+            response.closeHandler {
+                drained.completeExceptionally(IOException("Connection was closed"))
+            }
+            if (!response.writeQueueFull()) {
+                return
+            }
+            drained.get(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    companion object {
+
+        const val POOL_NAME = "yaade-backup"
+        const val POOL_SIZE = 2
+        const val MAX_EXPORT_TIME = 60 * 60 * 1000L
+        const val DRAIN_TIMEOUT = 5 * 60 * 1000L
+        const val CHUNK_SIZE = 64 * 1024
+        const val COPY_BUFFER_SIZE = 64 * 1024
+        const val SCRIPT_FETCH_SIZE = 1000
+        const val DATABASE_FILE_SUFFIX = ".mv.db"
+        const val SCRIPT_FILE = "yaade-db.sql"
+        private const val INSERT_PREFIX = "INSERT INTO "
+
+        private val COPY_LOCK = Any()
+        private var runningCopies = 0
+        private var reuseSpace = true
+
+        val EXCLUDABLE_TABLES = mapOf(
+            "history" to "REQUEST_HISTORY",
+            "jobResults" to "JOB_SCRIPT_RUNS",
+            "wsRecordings" to "WS_RECORDINGS"
+        )
+    }
+}
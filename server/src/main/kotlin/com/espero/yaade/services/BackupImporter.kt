@@ -0,0 +1,138 @@
+package com.espero.yaade.services
+
+import com.espero.yaade.JDBC_PWD
+import com.espero.yaade.JDBC_USR
+import com.espero.yaade.db.DaoManager
+import com.espero.yaade.server.errors.ServerError
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.vertx.core.json.JsonObject
+import net.lingala.zip4j.ZipFile
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.sql.Connection
+import java.sql.DriverManager
+import java.util.*
+
+// NOTE: a backup is restored into a side database next to the current one and validated
+// there, while the server keeps serving reads from the current database. Only the swap of
+// the database files happens while the gate of the data source is closed, so websockets
+// stay alive. The replaced database file is kept in the data directory
+class BackupImporter(private val daoManager: DaoManager) {
+
+    fun isRestoring(): Boolean {
+        return daoManager.isRestoring()
+    }
+
+    fun restore(zipFile: String): JsonObject {
+        if (!daoManager.beginRestore()) {
+            throw ServerError(
+                HttpResponseStatus.CONFLICT.code(),
+                "A backup is already being imported"
+            )
+        }
+        val restoreDir = File(DATA_DIR, "restore-${UUID.randomUUID()}")
+        try {
+            ZipFile(zipFile).extractAll(restoreDir.path)
+            val restoreDb = File(restoreDir, DB_NAME)
+            val script = File(restoreDir, BackupExporter.SCRIPT_FILE)
+            if (script.exists()) {
+                connect(restoreDb).use { conn ->
+                    conn.createStatement().use {
+                        it.execute("RUNSCRIPT FROM '${script.path}'")
+                    }
+                }
+            } else {
+                val dbFile = restoreDir.listFiles()
+                    ?.singleOrNull { it.name.endsWith(DB_FILE_SUFFIX) }
+                    ?: throw ServerError(
+                        HttpResponseStatus.BAD_REQUEST.code(),
+                        "Backup does not contain a database file"
+                    )
+                dbFile.renameTo(File(restoreDir, DB_NAME + DB_FILE_SUFFIX))
+            }
+            val tables = validate(restoreDb)
+
+            val current = File(DATA_DIR, DB_NAME + DB_FILE_SUFFIX).toPath()
+            val previous = File(DATA_DIR, "${UUID.randomUUID()}$DB_FILE_SUFFIX").toPath()
+            val restored = File(restoreDir, DB_NAME + DB_FILE_SUFFIX).toPath()
+            val swapped = daoManager.swapDatabase(DRAIN_TIMEOUT) {
+                Files.move(current, previous)
+                try {
+                    Files.move(restored, current, StandardCopyOption.ATOMIC_MOVE)
+                } catch (e: Exception) {
+                    Files.move(previous, current)
+                    throw e
+                }
+            }
+            if (!swapped) {
+                throw ServerError(
+                    HttpResponseStatus.SERVICE_UNAVAILABLE.code(),
+                    "Database is busy, try again later"
+                )
+            }
+            return JsonObject()
+                .put("tables", tables)
+                .put("previousDatabase", previous.fileName.toString())
+        } finally {
+            restoreDir.deleteRecursively()
+            daoManager.endRestore()
+        }
+    }
+
+    private fun validate(restoreDb: File): JsonObject {
+        val tables = JsonObject()
+        try {
+            connect(restoreDb, true).use { conn ->
+                val names = mutableListOf<String>()
+                conn.createStatement().use { stmt ->
+                    stmt.executeQuery(
+                        "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES " +
+                                "WHERE TABLE_SCHEMA = 'PUBLIC'"
+                    ).use { rs ->
+                        while (rs.next()) {
+                            names.add(rs.getString(1))
+                        }
+                    }
+                    // NOTE: counting reads every page of a table, a corrupt file fails here
+                    for (name in names) {
+                        stmt.executeQuery("SELECT COUNT(*) FROM PUBLIC.\"$name\"").use { rs ->
+                            rs.next()
+                            tables.put(name, rs.getLong(1))
+                        }
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            throw ServerError(
+                HttpResponseStatus.BAD_REQUEST.code(),
+                "Backup is not a valid database: ${e.message}"
+            )
+        }
+        val missing = REQUIRED_TABLES.filter { required ->
+            tables.fieldNames().none { it.equals(required, true) }
+        }
+        if (missing.isNotEmpty()) {
+            throw ServerError(
+                HttpResponseStatus.BAD_REQUEST.code(),
+                "Backup is missing tables: ${missing.joinToString()}"
+            )
+        }
+        return tables
+    }
+
+    private fun connect(db: File, mustExist: Boolean = false): Connection {
+        val url = "jdbc:h2:file:${db.path}" + if (mustExist) ";IFEXISTS=TRUE" else ""
+        return DriverManager.getConnection(url, JDBC_USR, JDBC_PWD)
+    }
+
+    companion object {
+
+        const val DATA_DIR = "./app/data"
+        const val DB_NAME = "yaade-db"
+        const val DB_FILE_SUFFIX = BackupExporter.DATABASE_FILE_SUFFIX
+        const val DRAIN_TIMEOUT = 10_000L
+
+        val REQUIRED_TABLES = listOf("USERS", "COLLECTIONS", "REQUESTS")
+    }
+}
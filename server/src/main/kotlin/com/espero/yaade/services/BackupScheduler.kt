@@ -0,0 +1,190 @@
+package com.espero.yaade.services
+
+import com.cronutils.model.CronType
+import com.cronutils.model.definition.CronDefinitionBuilder
+import com.cronutils.model.time.ExecutionTime
+import com.cronutils.parser.CronParser
+import com.espero.yaade.YAADE_BACKUP_CRON
+import com.espero.yaade.YAADE_BACKUP_MAX_AGE
+import com.espero.yaade.YAADE_BACKUP_PATH
+import com.espero.yaade.YAADE_BACKUP_RETENTION
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.eventbus.Message
+import io.vertx.core.impl.logging.LoggerFactory
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import io.vertx.kotlin.coroutines.CoroutineVerticle
+import io.vertx.kotlin.coroutines.coAwait
+import kotlinx.coroutines.launch
+import java.io.File
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+
+// NOTE: the backups are written by the backup exporter of the server, this verticle only
+// schedules them, so scheduled backups show up in the progress of the exports. A backup is
+// skipped when the database did not change since the last one, so a frequent schedule is
+// cheap on an idle instance. Every backup is verified against its checksum before it
+// replaces older backups
+class BackupScheduler(private val exporter: BackupExporter) : CoroutineVerticle() {
+
+    private val log = LoggerFactory.getLogger(BackupScheduler::class.java)
+
+    private val cronParser =
+        CronParser(CronDefinitionBuilder.instanceDefinitionFor(CronType.UNIX))
+    private lateinit var executionTime: ExecutionTime
+    private var timerId: Long? = null
+    private var nextRunAt: Long? = null
+
+    private var lastVersion: Long? = null
+    private var restores = 0L
+    private var lastBackup: JsonObject? = null
+    private var lastError: String? = null
+    private var completedBackups = 0L
+    private var skippedBackups = 0L
+    private var failedBackups = 0L
+
+    public override suspend fun start() {
+        executionTime = ExecutionTime.forCron(cronParser.parse(YAADE_BACKUP_CRON))
+        vertx.fileSystem().mkdirs(YAADE_BACKUP_PATH).coAwait()
+        vertx.eventBus().consumer(STATS_ADDRESS, this::getStats)
+        // NOTE: the version of an imported database can match the version of the last backup
+        vertx.eventBus().consumer<Any>(RESTORED_ADDRESS) {
+            lastVersion = null
+            restores++
+        }
+        scheduleNextRun()
+    }
+
+    public override suspend fun stop() {
+        timerId?.let { vertx.cancelTimer(it) }
+    }
+
+    private fun scheduleNextRun() {
+        val nextExecution = executionTime.nextExecution(ZonedDateTime.now(ZoneId.systemDefault()))
+        if (nextExecution.isEmpty) {
+            log.warn("Backup cron expression has no next execution: $YAADE_BACKUP_CRON")
+            return
+        }
+        val runAt = nextExecution.get().toInstant().toEpochMilli()
+        nextRunAt = runAt
+        timerId = vertx.setTimer(maxOf(runAt - System.currentTimeMillis(), 1)) {
+            launch {
+                runBackup()
+                scheduleNextRun()
+            }
+        }
+    }
+
+    private suspend fun runBackup() {
+        val name = BACKUP_PREFIX + LocalDateTime.now().format(NAME_FORMAT)
+        val tmp = File(YAADE_BACKUP_PATH, "$name$BACKUP_SUFFIX.tmp")
+        val restoresBefore = restores
+        try {
+            val version = exporter.databaseVersion().coAwait()
+            if (version == lastVersion) {
+                skippedBackups++
+                return
+            }
+            val result = exporter.exportToFile(tmp).coAwait()
+            val checksum = result.getString("checksum")
+            if (!exporter.verifyFile(tmp, checksum).coAwait()) {
+                throw RuntimeException("Checksum of backup $name does not match")
+            }
+            val file = File(YAADE_BACKUP_PATH, name + BACKUP_SUFFIX)
+            vertx.fileSystem().move(tmp.path, file.path).coAwait()
+            // NOTE: same format as sha256sum, so backups can be verified outside of yaade
+            vertx.fileSystem()
+                .writeFile(file.path + CHECKSUM_SUFFIX, Buffer.buffer("$checksum  ${file.name}\n"))
+                .coAwait()
+            if (restores == restoresBefore) {
+                lastVersion = version
+            }
+            lastBackup = result.put("file", file.name)
+            lastError = null
+            completedBackups++
+            log.info("Created backup ${file.name}")
+            applyRetention()
+        } catch (e: Throwable) {
+            failedBackups++
+            lastError = e.message
+            log.error("Scheduled backup failed", e)
+            if (vertx.fileSystem().exists(tmp.path).coAwait()) {
+                vertx.fileSystem().delete(tmp.path).coAwait()
+            }
+        }
+    }
+
+    // NOTE: the newest backup is always kept, even if it is older than the max age
+    private suspend fun applyRetention() {
+        val backups = listBackups()
+        val expiredBefore = System.currentTimeMillis() - YAADE_BACKUP_MAX_AGE
+        backups.forEachIndexed { index, backup ->
+            val expired = YAADE_BACKUP_MAX_AGE > 0 && backup.lastModified() < expiredBefore
+            if (index == 0 || (index < YAADE_BACKUP_RETENTION && !expired)) {
+                return@forEachIndexed
+            }
+            vertx.fileSystem().delete(backup.path).coAwait()
+            val checksumFile = backup.path + CHECKSUM_SUFFIX
+            if (vertx.fileSystem().exists(checksumFile).coAwait()) {
+                vertx.fileSystem().delete(checksumFile).coAwait()
+            }
+            log.info("Deleted backup ${backup.name}")
+        }
+    }
+
+    // NOTE: the names contain the creation time, so sorting by name sorts by age
+    private suspend fun listBackups(): List<File> {
+        return vertx.fileSystem().readDir(YAADE_BACKUP_PATH).coAwait()
+            .map { File(it) }
+            .filter { it.name.startsWith(BACKUP_PREFIX) && it.name.endsWith(BACKUP_SUFFIX) }
+            .sortedByDescending { it.name }
+    }
+
+    private fun getStats(msg: Message<Any>) {
+        launch {
+            val backups = JsonArray()
+            for (backup in listBackups()) {
+                val checksumFile = backup.path + CHECKSUM_SUFFIX
+                val checksum = if (vertx.fileSystem().exists(checksumFile).coAwait()) {
+                    vertx.fileSystem().readFile(checksumFile).coAwait()
+                        .toString().substringBefore(' ')
+                } else {
+                    null
+                }
+                backups.add(
+                    JsonObject()
+                        .put("file", backup.name)
+                        .put("size", backup.length())
+                        .put("createdAt", backup.lastModified())
+                        .put("checksum", checksum)
+                )
+            }
+            msg.reply(
+                JsonObject()
+                    .put("enabled", true)
+                    .put("cron", YAADE_BACKUP_CRON)
+                    .put("path", YAADE_BACKUP_PATH)
+                    .put("nextRunAt", nextRunAt)
+                    .put("lastBackup", lastBackup)
+                    .put("lastError", lastError)
+                    .put("completedBackups", completedBackups)
+                    .put("skippedBackups", skippedBackups)
+                    .put("failedBackups", failedBackups)
+                    .put("backups", backups)
+            )
+        }
+    }
+
+    companion object {
+
+        const val STATS_ADDRESS = "backup.stats"
+        const val RESTORED_ADDRESS = "backup.restored"
+        const val BACKUP_PREFIX = "yaade-backup-"
+        const val BACKUP_SUFFIX = ".zip"
+        const val CHECKSUM_SUFFIX = ".sha256"
+
+        private val NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+    }
+}
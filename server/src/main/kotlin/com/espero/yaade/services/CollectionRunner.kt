@@ -0,0 +1,400 @@
+package com.espero.yaade.services
+
+import com.espero.yaade.db.DaoManager
+import com.espero.yaade.model.db.CollectionDb
+import com.espero.yaade.model.db.UserDb
+import com.espero.yaade.server.errors.ServerError
+import com.espero.yaade.server.utils.awaitBlocking
+import io.netty.handler.codec.http.HttpResponseStatus
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import org.graalvm.polyglot.Context
+import org.graalvm.polyglot.HostAccess
+import org.graalvm.polyglot.SandboxPolicy
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+
+/*
+    Runs all requests of a collection tree (as built by CollectionRoute) in one go.
+    The options object has the following structure:
+    {
+        "envName": "dev",
+        "mode": "sequential" | "parallel" | "dependencies",
+        "concurrency": 5,
+        "stopOnFailure": false,
+        "dependencies": { "<requestId>": [<requestId>, ...] },
+        "assertions": { "status": [200, 201] | "2xx", "maxTime": 1000 }
+    }
+    Dependencies can also be declared per request with a "dependsOn" array in the request data.
+*/
+class CollectionRunner(
+    private val vertx: Vertx,
+    private val daoManager: DaoManager,
+    private val requestSender: RequestSender
+) {
+
+    private val requestPreparer = RequestPreparer(daoManager, ScriptRuntimeBuilder())
+    private val contextBuilder = Context.newBuilder("js")
+        .sandbox(SandboxPolicy.CONSTRAINED)
+        .`in`(ByteArrayInputStream(ByteArray(0)))
+        .allowHostAccess(HostAccess.CONSTRAINED)
+        .option("engine.WarnInterpreterOnly", "false")
+
+    suspend fun run(collectionTree: JsonObject, options: JsonObject, user: UserDb): JsonObject {
+        val envName: String? = options.getString("envName")
+        val mode = options.getString("mode", MODE_SEQUENTIAL)
+        val concurrency = options.getInteger("concurrency", DEFAULT_CONCURRENCY).coerceAtLeast(1)
+        val stopOnFailure = options.getBoolean("stopOnFailure", false)
+        val assertions = options.getJsonObject("assertions", JsonObject())
+        if (!RUN_MODES.contains(mode)) {
+            throw ServerError(HttpResponseStatus.BAD_REQUEST.code(), "Unknown run mode: $mode")
+        }
+
+        val entries = collectEntries(collectionTree)
+        // NOTE: cycles are rejected before any request is sent
+        val graph = if (mode == MODE_DEPENDENCIES)
+            sortByDependencies(entries, options.getJsonObject("dependencies", JsonObject()))
+        else
+            null
+        val startTime = System.currentTimeMillis()
+        val prepared = vertx.awaitBlocking { prepare(entries, envName, user) }
+
+        val results = when (mode) {
+            MODE_PARALLEL -> runParallel(prepared, envName, user, assertions, concurrency)
+            MODE_DEPENDENCIES ->
+                runWithDependencies(prepared, envName, user, assertions, concurrency, graph!!)
+
+            else -> runSequential(prepared, envName, user, assertions, stopOnFailure)
+        }
+
+        val ordered = prepared.mapNotNull { results[it.entry.requestId] }
+        val passed = ordered.count { it.getString("status") == STATUS_PASSED }
+        val failed = ordered.count { it.getString("status") == STATUS_FAILED }
+        val skipped = ordered.count { it.getString("status") == STATUS_SKIPPED }
+        return JsonObject()
+            .put("collectionId", collectionTree.getLong("id"))
+            .put("envName", envName)
+            .put("mode", mode)
+            .put("startTime", startTime)
+            .put("duration", System.currentTimeMillis() - startTime)
+            .put("success", failed == 0)
+            .put("total", ordered.size)
+            .put("passed", passed)
+            .put("failed", failed)
+            .put("skipped", skipped)
+            .put("results", JsonArray(ordered))
+    }
+
+    private suspend fun runSequential(
+        prepared: List<PreparedRequest>,
+        envName: String?,
+        user: UserDb,
+        assertions: JsonObject,
+        stopOnFailure: Boolean
+    ): Map<Long, JsonObject> {
+        val results = LinkedHashMap<Long, JsonObject>()
+        var aborted = false
+        for (p in prepared) {
+            if (aborted) {
+                results[p.entry.requestId] = skippedResult(p, "Run aborted after failure")
+                continue
+            }
+            val result = execute(p, envName, user, assertions)
+            results[p.entry.requestId] = result
+            if (stopOnFailure && result.getString("status") == STATUS_FAILED) {
+                aborted = true
+            }
+        }
+        return results
+    }
+
+    private suspend fun runParallel(
+        prepared: List<PreparedRequest>,
+        envName: String?,
+        user: UserDb,
+        assertions: JsonObject,
+        concurrency: Int
+    ): Map<Long, JsonObject> {
+        val semaphore = Semaphore(concurrency)
+        return coroutineScope {
+            prepared.map { p ->
+                async {
+                    semaphore.withPermit {
+                        p.entry.requestId to execute(p, envName, user, assertions)
+                    }
+                }
+            }.awaitAll().toMap()
+        }
+    }
+
+    private suspend fun runWithDependencies(
+        prepared: List<PreparedRequest>,
+        envName: String?,
+        user: UserDb,
+        assertions: JsonObject,
+        concurrency: Int,
+        graph: DependencyGraph
+    ): Map<Long, JsonObject> {
+        val byId = prepared.associateBy { it.entry.requestId }
+        val results = LinkedHashMap<Long, JsonObject>()
+        val semaphore = Semaphore(concurrency)
+        for (wave in graph.waves) {
+            val waveResults = coroutineScope {
+                wave.map { id ->
+                    async {
+                        val p = byId[id]!!
+                        val failedDependency = graph.dependencies[id]!!.firstOrNull {
+                            results[it]?.getString("status") != STATUS_PASSED
+                        }
+                        if (failedDependency != null) {
+                            id to skippedResult(p, "Dependency $failedDependency did not pass")
+                        } else {
+                            semaphore.withPermit { id to execute(p, envName, user, assertions) }
+                        }
+                    }
+                }.awaitAll()
+            }
+            results.putAll(waveResults)
+        }
+        return results
+    }
+
+    // NOTE: a wave consists of all requests whose dependencies are in earlier waves
+    private fun sortByDependencies(
+        entries: List<RunEntry>,
+        declaredDependencies: JsonObject
+    ): DependencyGraph {
+        val ids = entries.map { it.requestId }.toSet()
+        val dependencies = entries.associate { entry ->
+            val fromRequest = entry.data.getJsonArray("dependsOn", JsonArray())
+            val fromOptions =
+                declaredDependencies.getJsonArray(entry.requestId.toString(), JsonArray())
+            val deps = (fromRequest + fromOptions)
+                .mapNotNull { (it as? Number)?.toLong() ?: it?.toString()?.toLongOrNull() }
+                .filter { ids.contains(it) && it != entry.requestId }
+                .toSet()
+            entry.requestId to deps
+        }
+
+        val waves = mutableListOf<List<Long>>()
+        val sorted = mutableSetOf<Long>()
+        val remaining = entries.map { it.requestId }.toMutableList()
+        while (remaining.isNotEmpty()) {
+            val wave = remaining.filter { id -> dependencies[id]!!.all { sorted.contains(it) } }
+            if (wave.isEmpty()) {
+                throw ServerError(
+                    HttpResponseStatus.BAD_REQUEST.code(),
+                    "Circular dependency between requests: $remaining"
+                )
+            }
+            remaining.removeAll(wave.toSet())
+            sorted.addAll(wave)
+            waves.add(wave)
+        }
+        return DependencyGraph(dependencies, waves)
+    }
+
+    private suspend fun execute(
+        p: PreparedRequest,
+        envName: String?,
+        user: UserDb,
+        assertions: JsonObject
+    ): JsonObject {
+        val result = baseResult(p)
+        if (p.error != null) {
+            return result
+                .put("status", STATUS_FAILED)
+                .put("error", p.error)
+        }
+        val startedAt = System.currentTimeMillis()
+        val response = try {
+            requestSender.send(p.data!!, p.entry.collection, envName, user)
+        } catch (e: Throwable) {
+            JsonObject().put("error", e.message ?: "Unknown error")
+        }
+        val assertionResults = checkAssertions(response, assertions)
+        val success = assertionResults.all { (it as JsonObject).getBoolean("passed") }
+        return result
+            .put("status", if (success) STATUS_PASSED else STATUS_FAILED)
+            .put("startedAt", startedAt)
+            .put("time", response.getLong("time"))
+            .put("responseStatus", response.getInteger("status"))
+            .put("size", response.getInteger("size"))
+            .put("error", response.getString("error"))
+            .put("assertions", assertionResults)
+    }
+
+    private fun checkAssertions(response: JsonObject, assertions: JsonObject): JsonArray {
+        val result = JsonArray()
+        val error = response.getString("error")
+        val status = response.getInteger("status")
+        result.add(
+            JsonObject()
+                .put("name", "no error")
+                .put("passed", error == null)
+                .put("actual", error)
+        )
+        val expectedStatus = assertions.getValue("status")
+        val statusPassed = when (expectedStatus) {
+            null -> status != null && status < 400
+            is JsonArray -> expectedStatus.contains(status)
+            is Number -> status == expectedStatus.toInt()
+            is String -> status != null && matchesStatusPattern(status, expectedStatus)
+            else -> false
+        }
+        result.add(
+            JsonObject()
+                .put("name", "status")
+                .put("passed", statusPassed)
+                .put("expected", expectedStatus ?: "< 400")
+                .put("actual", status)
+        )
+        val maxTime = assertions.getLong("maxTime")
+        if (maxTime != null) {
+            val time = response.getLong("time") ?: Long.MAX_VALUE
+            result.add(
+                JsonObject()
+                    .put("name", "maxTime")
+                    .put("passed", time <= maxTime)
+                    .put("expected", maxTime)
+                    .put("actual", response.getLong("time"))
+            )
+        }
+        return result
+    }
+
+    private fun matchesStatusPattern(status: Int, pattern: String): Boolean {
+        val p = pattern.trim().lowercase()
+        if (p.length != 3) return false
+        val s = status.toString()
+        return p.indices.all { p[it] == 'x' || p[it] == s[it] }
+    }
+
+    private fun baseResult(p: PreparedRequest): JsonObject {
+        return JsonObject()
+            .put("requestId", p.entry.requestId)
+            .put("collectionId", p.entry.collection.id)
+            .put("name", p.entry.data.getString("name"))
+            .put("method", p.data?.getString("method") ?: p.entry.data.getString("method"))
+    }
+
+    private fun skippedResult(p: PreparedRequest, reason: String): JsonObject {
+        return baseResult(p)
+            .put("status", STATUS_SKIPPED)
+            .put("error", reason)
+    }
+
+    private fun collectEntries(collectionTree: JsonObject): List<RunEntry> {
+        val result = mutableListOf<RunEntry>()
+        collect(collectionTree, result, 0)
+        return result
+    }
+
+    // NOTE: the order mirrors the sidebar: child collections first, then the own requests
+    private fun collect(
+        collectionJson: JsonObject,
+        result: MutableList<RunEntry>,
+        depth: Int
+    ) {
+        // NOTE: we cap at 10 to prevent infinite loops
+        if (depth > 10) return
+        for (child in collectionJson.getJsonArray("children", JsonArray())) {
+            collect(child as JsonObject, result, depth + 1)
+        }
+        val collection = CollectionDb.fromUpdateRequest(collectionJson)
+        for (rawRequest in collectionJson.getJsonArray("requests", JsonArray())) {
+            val request = rawRequest as JsonObject
+            if (request.getString("type", "REST") != "REST") continue
+            result.add(
+                RunEntry(
+                    request.getLong("id"),
+                    collection,
+                    request.getJsonObject("data", JsonObject())
+                )
+            )
+        }
+    }
+
+    private fun prepare(
+        entries: List<RunEntry>,
+        envName: String?,
+        user: UserDb
+    ): List<PreparedRequest> {
+        val treeCache = mutableMapOf<Long, List<CollectionDb>>()
+        val out = ByteArrayOutputStream()
+        // NOTE: one context is shared by all requests of the run
+        val context = if (envName != null) contextBuilder.out(out).err(out).build() else null
+        try {
+            val interpolate = context?.let { requestPreparer.initInterpolation(it) }
+            return entries.map { entry ->
+                try {
+                    val parentTree = treeCache.getOrPut(entry.collection.id) {
+                        requestPreparer.getParentTree(entry.collection, user)
+                    }
+                    val envData = if (envName != null)
+                        daoManager.collectionDao.getMergedEnvData(entry.collection.id, envName)
+                    else
+                        null
+                    val requestHeaders = entry.data.getJsonArray("headers", JsonArray())
+                    val headers =
+                        requestPreparer.getCollectionTreeHeaders(parentTree, requestHeaders)
+                    val requestData = entry.data.copy().put("headers", headers)
+                    val interpolated = if (interpolate != null)
+                        requestPreparer.interpolate(
+                            interpolate,
+                            requestData,
+                            (envData ?: JsonObject()).encode()
+                        )
+                    else
+                        requestData
+                    PreparedRequest(entry, interpolated, null)
+                } catch (e: Throwable) {
+                    PreparedRequest(entry, null, e.message ?: "Failed to prepare request")
+                }
+            }
+        } finally {
+            context?.close()
+            val outString = out.toString()
+            if (outString.trimIndent().isNotEmpty()) {
+                println(outString)
+            }
+        }
+    }
+
+    private class RunEntry(
+        val requestId: Long,
+        val collection: CollectionDb,
+        val data: JsonObject
+    )
+
+    private class DependencyGraph(
+        val dependencies: Map<Long, Set<Long>>,
+        val waves: List<List<Long>>
+    )
+
+    private class PreparedRequest(
+        val entry: RunEntry,
+        val data: JsonObject?,
+        val error: String?
+    )
+
+    companion object {
+
+        const val MODE_SEQUENTIAL = "sequential"
+        const val MODE_PARALLEL = "parallel"
+        const val MODE_DEPENDENCIES = "dependencies"
+        const val DEFAULT_CONCURRENCY = 5
+
+        val RUN_MODES = setOf(MODE_SEQUENTIAL, MODE_PARALLEL, MODE_DEPENDENCIES)
+
+        const val STATUS_PASSED = "passed"
+        const val STATUS_FAILED = "failed"
+        const val STATUS_SKIPPED = "skipped"
+    }
+}
@@ -5,149 +5,482 @@ import com.cronutils.model.definition.CronDefinitionBuilder
 import com.cronutils.model.time.ExecutionTime
 import com.cronutils.parser.CronParser
 import com.espero.yaade.SCRIPT_RUNNER_TIMEOUT
+import com.espero.yaade.YAADE_CRON_CLUSTER_MODE
+import com.espero.yaade.YAADE_CRON_JITTER
+import com.espero.yaade.YAADE_CRON_MAX_CONCURRENT_RUNS
+import com.espero.yaade.YAADE_CRON_MAX_CONCURRENT_RUNS_PER_OWNER
+import com.espero.yaade.YAADE_JOB_SCRIPT_RUNS_MAX_AGE
+import com.espero.yaade.YAADE_NODE_ID
+import com.espero.yaade.db.CronLeaseDao.LeaseResult
 import com.espero.yaade.db.DaoManager
 import io.vertx.core.eventbus.DeliveryOptions
 import io.vertx.core.eventbus.Message
+import io.vertx.core.impl.logging.LoggerFactory
 import io.vertx.core.json.JsonArray
 import io.vertx.core.json.JsonObject
 import io.vertx.kotlin.coroutines.CoroutineVerticle
 import io.vertx.kotlin.coroutines.coAwait
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import java.time.Instant
 import java.time.ZoneId
+import java.util.*
 import java.util.concurrent.ConcurrentHashMap
-import kotlin.jvm.optionals.getOrElse
 
+// NOTE: all state of this verticle is only accessed from its own context,
+// timers, event bus handlers and coroutines are never executed concurrently
 class CronScriptRunner(private val daoManager: DaoManager) : CoroutineVerticle() {
 
+    private val log = LoggerFactory.getLogger(CronScriptRunner::class.java)
+
     private var stopped = false
     private val cronParser =
         CronParser(CronDefinitionBuilder.instanceDefinitionFor(CronType.UNIX))
 
-    private val cronScripts = ConcurrentHashMap<Long, JsonObject>()
+    private val cronScripts = ConcurrentHashMap<Long, ScheduledScript>()
+
+    // NOTE: ids of disabled scripts, they are known but not scheduled
+    private val disabledScripts = HashSet<Long>()
     private val runningScripts = ConcurrentHashMap<Long, Boolean>()
 
+    // NOTE: min-heap of the next fire instant of every enabled script. Entries of scripts that
+    // were changed or removed in the meantime are detected by their generation and skipped
+    private val schedule = PriorityQueue<ScheduledFire>(compareBy { it.fireAt })
+    private var generation = 0L
+    private var timerId: Long? = null
+
+    // NOTE: due fires wait here while the instance or the owner of the script is at its cap.
+    // A script is marked as running while it waits, so it is queued at most once
+    private val pendingRuns = ArrayDeque<PendingRun>()
+    private val ownerRuns = HashMap<Long, Int>()
+    private var activeRuns = 0
+    private var delayedRuns = 0L
+
+    private var firedRuns = 0L
+    private var totalLag = 0L
+    private var maxLag = 0L
+    private var lastLag = 0L
+    private var skippedFires = 0L
+    private var failovers = 0L
+    private var syncTimerId: Long? = null
+
     public override suspend fun start() {
         initCronScripts()
         vertx.eventBus().consumer("cronjob.add", this::addCronScript)
         vertx.eventBus().consumer("cronjob.remove", this::removeCronScript)
-        while (!stopped) {
-            try {
-                for (cronScript in cronScripts.values) {
-                    launch {
-                        runCronScript(cronScript)
-                    }
-                }
-                vertx.timer(100).coAwait()
-            } catch (e: InterruptedException) {
-                Thread.currentThread().interrupt()
-                break
-            } catch (e: Throwable) {
-                e.printStackTrace()
-            }
+        vertx.eventBus().consumer("cronjob.stats", this::getStats)
+        // NOTE: sent after a backup was imported, the scripts of the restored database
+        // replace the scheduled ones
+        vertx.eventBus().consumer<Any>("cronjob.reload") {
+            syncCronScripts()
+            startPendingRuns()
         }
+        // NOTE: the event bus is local to each node, so in cluster mode changes made
+        // through other nodes are picked up by periodically syncing with the database
+        if (YAADE_CRON_CLUSTER_MODE) {
+            syncTimerId = vertx.setPeriodic(SYNC_INTERVAL) { syncCronScripts() }
+        }
+        scheduleNextWakeup()
     }
 
     private fun initCronScripts() {
         daoManager.jobScriptDao.getAll().forEach { cronScript ->
-            cronScripts[cronScript.id] = cronScript.toJson()
+            scheduleCronScript(cronScript.toJson())
         }
     }
 
-    private suspend fun runCronScript(cronScript: JsonObject) {
-        if (runningScripts[cronScript.getLong("id")] == true) {
+    private fun scheduleCronScript(cronScript: JsonObject, after: Long? = null) {
+        val id = cronScript.getLong("id")
+        cronScripts.remove(id)
+        disabledScripts.add(id)
+        val data = cronScript.getJsonObject("data") ?: JsonObject()
+        val enabled = data.getBoolean("enabled") ?: false
+        val cronExpression = data.getString("cronExpression") ?: ""
+        if (!enabled || cronExpression == "") {
             return
         }
-        val enabled = cronScript.getJsonObject("data").getBoolean("enabled") ?: false
-        if (!enabled) {
+        val executionTime = try {
+            ExecutionTime.forCron(cronParser.parse(cronExpression))
+        } catch (e: Exception) {
+            log.warn("Invalid cron expression for script $id: $cronExpression")
             return
         }
-        val lastRun = cronScript.getJsonObject("data").getLong("lastRun") ?: 0
-        val cronExpression = cronScript.getJsonObject("data").getString("cronExpression") ?: return
-        if (cronExpression == "") {
+        disabledScripts.remove(id)
+        val scheduled = ScheduledScript(cronScript, executionTime, ++generation)
+        cronScripts[id] = scheduled
+        // NOTE: running scripts are put back into the schedule once they are finished
+        if (runningScripts[id] != true) {
+            if (after == null) enqueue(scheduled) else enqueue(scheduled, after)
+        }
+    }
+
+    private fun syncCronScripts() {
+        try {
+            val scripts = daoManager.jobScriptDao.getAll().map { it.toJson() }
+            val ids = scripts.map { it.getLong("id") }.toSet()
+            cronScripts.keys.filter { !ids.contains(it) }.forEach { cronScripts.remove(it) }
+            disabledScripts.retainAll(ids)
+            for (script in scripts) {
+                val current = cronScripts[script.getLong("id")]
+                if (current == null || definitionOf(current.json) != definitionOf(script)) {
+                    scheduleCronScript(withLastRunIfKnown(script))
+                }
+            }
+            val expiredBefore = System.currentTimeMillis() - LEASE_RETENTION
+            daoManager.cronLeaseDao.deleteExpiredBefore(expiredBefore)
+        } catch (e: Throwable) {
+            log.error("Failed to sync cron scripts", e)
+        }
+        scheduleNextWakeup()
+    }
+
+    private fun definitionOf(cronScript: JsonObject): JsonObject {
+        val data = cronScript.getJsonObject("data") ?: JsonObject()
+        return JsonObject()
+            .put("ownerId", cronScript.getLong("ownerId"))
+            .put("collectionId", cronScript.getLong("collectionId"))
+            .put("enabled", data.getBoolean("enabled"))
+            .put("cronExpression", data.getString("cronExpression"))
+            .put("script", data.getString("script"))
+            .put("selectedEnvName", data.getString("selectedEnvName"))
+            .put("jitter", data.getInteger("jitter"))
+            .put("overlapPolicy", data.getString("overlapPolicy"))
+    }
+
+    private fun enqueue(
+        scheduled: ScheduledScript,
+        after: Long = scheduled.json.getJsonObject("data").getLong("lastRun") ?: 0
+    ) {
+        val zonedAfter = Instant.ofEpochMilli(after).atZone(ZoneId.systemDefault())
+        val nextExecution = scheduled.executionTime.nextExecution(zonedAfter)
+        if (nextExecution.isEmpty) {
+            log.warn("No next execution found for script ${scheduled.id}")
+            return
+        }
+        val slot = nextExecution.get().toInstant().toEpochMilli()
+        val fireAt = slot + jitterOf(scheduled, slot)
+        schedule.add(ScheduledFire(scheduled.id, fireAt, scheduled.generation, slot))
+        scheduleNextWakeup()
+    }
+
+    // NOTE: the offset only depends on the script id, so fires of the same script keep
+    // their distance and all nodes of a cluster compute the same fire instant.
+    // It never reaches the next slot of the script
+    private fun jitterOf(scheduled: ScheduledScript, slot: Long): Long {
+        val jitter = scheduled.json.getJsonObject("data").getInteger("jitter") ?: YAADE_CRON_JITTER
+        if (jitter <= 0) {
+            return 0
+        }
+        val zonedSlot = Instant.ofEpochMilli(slot).atZone(ZoneId.systemDefault())
+        val interval = scheduled.executionTime.nextExecution(zonedSlot)
+            .map { it.toInstant().toEpochMilli() - slot }
+            .orElse(Long.MAX_VALUE)
+        val spread = minOf(jitter * 1000L, interval - 1)
+        if (spread <= 0) {
+            return 0
+        }
+        return Math.floorMod(scheduled.id * JITTER_MULTIPLIER ushr 16, spread)
+    }
+
+    private fun scheduleNextWakeup() {
+        if (stopped) {
+            return
+        }
+        timerId?.let { vertx.cancelTimer(it) }
+        val next = schedule.peek()
+        val delay = if (next == null)
+            MAX_SLEEP
+        else
+            (next.fireAt - System.currentTimeMillis()).coerceIn(1, MAX_SLEEP)
+        timerId = vertx.setTimer(delay) { fireDueScripts() }
+    }
+
+    private fun fireDueScripts() {
+        timerId = null
+        // NOTE: runs that were held back by an import that failed are started here
+        startPendingRuns()
+        val now = System.currentTimeMillis()
+        while (true) {
+            val fire = schedule.peek() ?: break
+            if (fire.fireAt > now) {
+                break
+            }
+            schedule.poll()
+            val scheduled = cronScripts[fire.scriptId] ?: continue
+            if (scheduled.generation != fire.generation || runningScripts[fire.scriptId] == true) {
+                continue
+            }
+            if (!fire.retry) {
+                recordLag(now - fire.fireAt)
+            }
+            runningScripts[scheduled.id] = true
+            if (!daoManager.isRestoring() && canStart(scheduled)) {
+                startRun(scheduled, fire)
+            } else {
+                delayedRuns++
+                pendingRuns.addLast(PendingRun(scheduled, fire))
+            }
+        }
+        scheduleNextWakeup()
+    }
+
+    private fun canStart(scheduled: ScheduledScript): Boolean {
+        return activeRuns < YAADE_CRON_MAX_CONCURRENT_RUNS &&
+                (ownerRuns[scheduled.ownerId] ?: 0) < YAADE_CRON_MAX_CONCURRENT_RUNS_PER_OWNER
+    }
+
+    private fun startRun(scheduled: ScheduledScript, fire: ScheduledFire) {
+        activeRuns++
+        ownerRuns.merge(scheduled.ownerId, 1, Int::plus)
+        launch {
+            try {
+                if (YAADE_CRON_CLUSTER_MODE)
+                    claimAndRunCronScript(scheduled, fire)
+                else
+                    runCronScript(scheduled, fire)
+            } finally {
+                activeRuns--
+                ownerRuns.merge(scheduled.ownerId, -1) { a, b -> (a + b).takeIf { it > 0 } }
+                startPendingRuns()
+            }
+        }
+    }
+
+    // NOTE: runs are held back while a backup is imported, their results would be
+    // written into the database that is about to be replaced
+    private fun startPendingRuns() {
+        if (daoManager.isRestoring()) {
             return
         }
-        val executionTime = ExecutionTime.forCron(cronParser.parse(cronExpression))
-        val zdtutc = Instant.ofEpochMilli(lastRun).atZone(ZoneId.systemDefault())
-        val nextExecution = executionTime.nextExecution(zdtutc).getOrElse {
-            throw RuntimeException("No next execution found")
+        val iterator = pendingRuns.iterator()
+        while (iterator.hasNext() && activeRuns < YAADE_CRON_MAX_CONCURRENT_RUNS) {
+            val pending = iterator.next()
+            val current = cronScripts[pending.scheduled.id]
+            if (current?.generation != pending.scheduled.generation) {
+                // NOTE: the script was changed or removed while it was waiting
+                iterator.remove()
+                runningScripts[pending.scheduled.id] = false
+                current?.let { enqueue(it) }
+                continue
+            }
+            if (canStart(pending.scheduled)) {
+                iterator.remove()
+                startRun(pending.scheduled, pending.fire)
+            }
         }
-        val nowZoned =
-            Instant.ofEpochMilli(System.currentTimeMillis()).atZone(ZoneId.systemDefault())
-        if (nowZoned.isBefore(nextExecution)) {
+    }
+
+    private fun recordLag(lag: Long) {
+        firedRuns++
+        totalLag += lag
+        lastLag = lag
+        if (lag > maxLag) {
+            maxLag = lag
+        }
+        if (lag > LAG_WARN_THRESHOLD) {
+            log.warn("Cron script fired ${lag}ms late")
+        }
+    }
+
+    // NOTE: every node schedules the same fires, the lease decides which node runs a fire.
+    // Nodes that lose check the lease again once it expires to take over from a dead node
+    private suspend fun claimAndRunCronScript(scheduled: ScheduledScript, fire: ScheduledFire) {
+        val result = try {
+            daoManager.cronLeaseDao.tryAcquire(scheduled.id, fire.slot, YAADE_NODE_ID, LEASE_TTL)
+        } catch (e: Throwable) {
+            log.error("Failed to acquire lease for cron script ${scheduled.id}", e)
+            LeaseResult.Skipped
+        }
+        if (result is LeaseResult.Acquired) {
+            if (fire.retry) {
+                failovers++
+                log.warn("Taking over cron script ${scheduled.id} from an expired lease")
+            }
+            try {
+                runCronScript(scheduled, fire)
+            } finally {
+                try {
+                    daoManager.cronLeaseDao.complete(scheduled.id, fire.slot, YAADE_NODE_ID)
+                } catch (e: Throwable) {
+                    log.error("Failed to complete lease for cron script ${scheduled.id}", e)
+                }
+            }
+            return
+        }
+        skippedFires++
+        runningScripts[scheduled.id] = false
+        if (cronScripts[scheduled.id]?.generation != scheduled.generation) {
             return
         }
+        if (result is LeaseResult.Held) {
+            schedule.add(
+                ScheduledFire(
+                    scheduled.id,
+                    result.expiresAt + 1,
+                    scheduled.generation,
+                    fire.slot,
+                    retry = true
+                )
+            )
+        }
+        // NOTE: the next fire is computed from the slot because the local lastRun is only
+        // updated by the node that ran the script. Retries were enqueued next to it already
+        if (!fire.retry) {
+            val lastRun = scheduled.json.getJsonObject("data").getLong("lastRun") ?: 0
+            enqueue(scheduled, maxOf(fire.slot, lastRun))
+        }
+    }
 
+    private suspend fun runCronScript(scheduled: ScheduledScript, fire: ScheduledFire) {
+        val cronScript = scheduled.json
         val script = cronScript.getJsonObject("data").getString("script")
         val collectionId = cronScript.getLong("collectionId")
         val envName = cronScript.getJsonObject("data").getString("selectedEnvName") ?: ""
-        val owner = daoManager.userDao.getById(cronScript.getLong("ownerId"))
-            ?: throw RuntimeException("Owner not found for id: " + cronScript.getLong("ownerId"))
-        val ownerGroups = JsonArray(owner.groups().toList())
         var res: JsonObject? = null
         try {
-            runningScripts[cronScript.getLong("id")] = true
+            val ownerId = cronScript.getLong("ownerId")
+            val owner = daoManager.userDao.getById(ownerId)
+                ?: throw RuntimeException("Owner not found for id: $ownerId")
+            val ownerGroups = JsonArray(owner.groups().toList())
             val msg = JsonObject()
+                .put("scriptId", scheduled.id)
                 .put("script", script)
                 .put("collectionId", collectionId)
                 .put("envName", envName)
                 .put("ownerGroups", ownerGroups)
+                .put("ownerId", ownerId)
+                .put("tier", ScriptTier.STANDARD.name)
             res = vertx.eventBus()
                 .request<JsonObject>(
                     "script.run", msg, DeliveryOptions().setSendTimeout(
-                        SCRIPT_RUNNER_TIMEOUT + 1000
+                        ScriptTier.STANDARD.timeout + 1000
                     )
                 )
                 .coAwait().body()
         } catch (e: Throwable) {
             e.printStackTrace()
         } finally {
+            var newJson = cronScript.copy()
+            newJson.getJsonObject("data").put("lastRun", System.currentTimeMillis())
+            // NOTE: runs that were started before a backup import record their result
+            // into the restored database
+            while (daoManager.isRestoring()) {
+                delay(RESTORE_POLL_INTERVAL)
+            }
             try {
                 // NOTE: we get the latest version of the cron script from the database
                 // to reduce the risk of accidental overwriting of other changes
-                val newScript = daoManager.jobScriptDao.getById(cronScript.getLong("id"))
-                    ?: throw RuntimeException("Script not found for id: " + cronScript.getLong("id"))
-                val newData = newScript.jsonData().put("lastRun", System.currentTimeMillis())
-                if (res != null) {
-                    val results = newScript.jsonData().getJsonArray("results") ?: JsonArray()
-                    results.add(res)
-                    val maxResults = newScript.jsonData().getInteger("storeMaxResults") ?: 10
-                    val newResults = JsonArray()
-                    newResults.add(res)
-                    for (i in 0 until maxResults.coerceAtMost(results.size()) - 1) {
-                        newResults.add(results.getJsonObject(i))
+                daoManager.transaction {
+                    val newScript = daoManager.jobScriptDao.getById(scheduled.id)
+                        ?: throw RuntimeException("Script not found for id: " + scheduled.id)
+                    val run = res?.let {
+                        daoManager.jobScriptRunDao
+                            .record(newScript, it, YAADE_JOB_SCRIPT_RUNS_MAX_AGE)
                     }
-                    newData.put("results", newResults)
-                    newScript.setJsonData(newData)
+                    newScript.setLatestRun(System.currentTimeMillis(), run)
+                    daoManager.jobScriptDao.update(newScript)
+                    newJson = newScript.toJson()
                 }
-                daoManager.jobScriptDao.update(newScript)
-                cronScripts[newScript.id] = newScript.toJson()
             } catch (e: Throwable) {
                 e.printStackTrace()
             } finally {
-                runningScripts[cronScript.getLong("id")] = false
+                runningScripts[scheduled.id] = false
+                // NOTE: scripts that were removed while running are not scheduled again.
+                // With the catchUp policy the next fire is computed from the slot of this run,
+                // so all fires missed while it was running are coalesced into one immediate run
+                if (cronScripts.containsKey(scheduled.id)) {
+                    val catchUp = newJson.getJsonObject("data")
+                        .getString("overlapPolicy") == OVERLAP_POLICY_CATCH_UP
+                    scheduleCronScript(newJson, if (catchUp) fire.slot else null)
+                }
             }
         }
     }
 
     private fun addCronScript(msg: Message<JsonObject>) {
-        val cronScript = msg.body()
-        val lastRun: Long? =
-            cronScripts[cronScript.getLong("id")]?.getJsonObject("data")?.getLong("lastRun")
-        if (lastRun != null) {
+        scheduleCronScript(withLastRunIfKnown(msg.body()))
+        scheduleNextWakeup()
+    }
+
+    // NOTE: changed scripts that were already known, including disabled ones that are enabled
+    // again, continue from now instead of catching up on fires that were missed before
+    private fun withLastRunIfKnown(cronScript: JsonObject): JsonObject {
+        val id = cronScript.getLong("id")
+        if (cronScripts.containsKey(id) || disabledScripts.contains(id)) {
             val newData =
                 cronScript.getJsonObject("data").put("lastRun", System.currentTimeMillis())
             cronScript.put("data", newData)
         }
-        cronScripts[cronScript.getLong("id")] = cronScript
+        return cronScript
     }
 
     private fun removeCronScript(msg: Message<Long>) {
         val id = msg.body()
         cronScripts.remove(id)
+        disabledScripts.remove(id)
+    }
+
+    private fun getStats(msg: Message<Any>) {
+        msg.reply(
+            JsonObject()
+                .put("scheduledScripts", cronScripts.size)
+                .put("runningScripts", runningScripts.count { it.value })
+                .put("queuedFires", schedule.size)
+                .put("nextFireAt", schedule.peek()?.fireAt)
+                .put("firedRuns", firedRuns)
+                .put("averageLag", if (firedRuns == 0L) 0 else totalLag / firedRuns)
+                .put("maxLag", maxLag)
+                .put("lastLag", lastLag)
+                .put("clusterMode", YAADE_CRON_CLUSTER_MODE)
+                .put("nodeId", YAADE_NODE_ID)
+                .put("skippedFires", skippedFires)
+                .put("failovers", failovers)
+                .put("activeRuns", activeRuns)
+                .put("pendingRuns", pendingRuns.size)
+                .put("delayedRuns", delayedRuns)
+        )
     }
 
     public override suspend fun stop() {
         stopped = true
+        timerId?.let { vertx.cancelTimer(it) }
+        syncTimerId?.let { vertx.cancelTimer(it) }
+    }
+
+    private class ScheduledScript(
+        val json: JsonObject,
+        val executionTime: ExecutionTime,
+        val generation: Long
+    ) {
+
+        val id: Long = json.getLong("id")
+        val ownerId: Long = json.getLong("ownerId") ?: -1
+    }
+
+    // NOTE: slot is the planned fire instant that identifies the lease, fireAt is the slot
+    // plus jitter, or the expiry of the lease of another node for retries
+    private class ScheduledFire(
+        val scriptId: Long,
+        val fireAt: Long,
+        val generation: Long,
+        val slot: Long,
+        val retry: Boolean = false
+    )
+
+    private class PendingRun(val scheduled: ScheduledScript, val fire: ScheduledFire)
+
+    companion object {
+
+        const val MAX_SLEEP = 60_000L
+        const val RESTORE_POLL_INTERVAL = 1_000L
+        const val LAG_WARN_THRESHOLD = 1_000L
+        const val SYNC_INTERVAL = 30_000L
+        const val LEASE_RETENTION = 24 * 60 * 60 * 1000L
+        const val OVERLAP_POLICY_CATCH_UP = "catchUp"
+        private const val JITTER_MULTIPLIER = -7046029254386353131L
+
+        // NOTE: a run is bounded by the script timeout, so a lease that outlives it
+        // belongs to a node that died while running the script
+        val LEASE_TTL = SCRIPT_RUNNER_TIMEOUT + 30_000L
     }
 }
@@ -0,0 +1,202 @@
+package com.espero.yaade.services
+
+import com.espero.yaade.FILE_STORAGE_PATH
+import com.espero.yaade.db.DaoManager
+import com.espero.yaade.model.db.FileBlobDb
+import com.espero.yaade.model.db.FileDb
+import com.espero.yaade.model.db.UserDb
+import io.vertx.core.json.JsonObject
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.security.DigestInputStream
+import java.security.MessageDigest
+import kotlin.io.path.name
+
+// NOTE: the content of uploaded files is stored once per sha-256 hash in the blobs directory,
+// every file row references its blob by the hash. Changes of blobs and their reference counts
+// are serialized, so a blob is never deleted while the same content is uploaded again.
+// All functions block and must not be called from the event loop
+class FileStore(private val daoManager: DaoManager) {
+
+    fun store(uploadedFile: Path, fileDb: FileDb): FileDb {
+        attach(uploadedFile, fileDb, true)
+        return fileDb
+    }
+
+    fun delete(fileDb: FileDb) {
+        synchronized(LOCK) {
+            val hash = fileDb.hash
+            if (hash == null) {
+                daoManager.fileDao.delete(fileDb.id)
+                Files.deleteIfExists(legacyPath(fileDb.id))
+                return
+            }
+            val blob = daoManager.fileBlobDao.getByHash(hash)
+            daoManager.transaction {
+                daoManager.fileDao.delete(fileDb.id)
+                if (blob != null) {
+                    blob.refCount--
+                    if (blob.refCount > 0) {
+                        daoManager.fileBlobDao.update(blob)
+                    } else {
+                        daoManager.fileBlobDao.delete(blob.id)
+                    }
+                }
+            }
+            // NOTE: content without a blob row is left to the garbage collection
+            if (blob != null && blob.refCount <= 0) {
+                Files.deleteIfExists(blobPath(hash))
+            }
+        }
+    }
+
+    fun pathOf(fileDb: FileDb): Path {
+        val hash = fileDb.hash ?: return legacyPath(fileDb.id)
+        return blobPath(hash)
+    }
+
+    // NOTE: a form data file is referenced by the hash of its content or by the id of the file.
+    // A hash only resolves to the content of a file the user can read. Requests that are sent
+    // without a user, e.g. by scripts, can only reference files by their id
+    fun pathOfReference(file: JsonObject, user: UserDb?): Path? {
+        val hash = file.getString("hash")
+        if (hash != null) {
+            if (user == null || !HASH_PATTERN.matches(hash)) {
+                return null
+            }
+            val readable = daoManager.fileDao.getByHash(hash).any { it.canBeReadBy(user) }
+            return if (readable) blobPath(hash) else null
+        }
+        val id = file.getString("id")?.toLongOrNull() ?: return null
+        val fileDb = daoManager.fileDao.getById(id)
+        if (fileDb == null) {
+            return if (user == null) legacyPath(id) else null
+        }
+        if (user != null && !fileDb.canBeReadBy(user)) {
+            return null
+        }
+        return pathOf(fileDb)
+    }
+
+    // NOTE: files that were uploaded before the content-addressed store are moved into it.
+    // Files that were stored before the hash had its own column get it from their data
+    fun migrateLegacyFiles() {
+        for (fileDb in daoManager.fileDao.getWithoutHash()) {
+            val hash = fileDb.jsonData().getString("hash")
+            if (hash != null) {
+                fileDb.hash = hash
+                daoManager.fileDao.update(fileDb)
+                continue
+            }
+            val legacyPath = legacyPath(fileDb.id)
+            if (Files.exists(legacyPath)) {
+                attach(legacyPath, fileDb, false)
+            }
+        }
+    }
+
+    // NOTE: reference counts are recounted from the file rows, so counts that drifted, e.g.
+    // after a backup was imported, are corrected before unreferenced blobs are deleted
+    fun collectGarbage(): JsonObject {
+        synchronized(LOCK) {
+            val counts = daoManager.fileDao.countByHash()
+            val blobs = daoManager.fileBlobDao.getAll()
+            var deletedBlobs = 0
+            var freedBytes = 0L
+            for (blob in blobs) {
+                val count = counts[blob.hash] ?: 0
+                if (count == 0) {
+                    daoManager.fileBlobDao.delete(blob.id)
+                    if (Files.deleteIfExists(blobPath(blob.hash))) {
+                        freedBytes += blob.size
+                    }
+                    deletedBlobs++
+                } else if (count != blob.refCount) {
+                    blob.refCount = count
+                    daoManager.fileBlobDao.update(blob)
+                }
+            }
+            val known = blobs.map { it.hash }.toSet()
+            for ((hash, count) in counts) {
+                val path = blobPath(hash)
+                if (!known.contains(hash) && Files.exists(path)) {
+                    val blob = FileBlobDb(hash, Files.size(path))
+                    blob.refCount = count
+                    daoManager.fileBlobDao.create(blob)
+                }
+            }
+            var deletedFiles = 0
+            val blobsDir = Paths.get(FILE_STORAGE_PATH, BLOBS_DIR)
+            if (Files.exists(blobsDir)) {
+                Files.walk(blobsDir).use { paths ->
+                    paths.filter { Files.isRegularFile(it) && !counts.containsKey(it.name) }
+                        .forEach {
+                            freedBytes += Files.size(it)
+                            Files.delete(it)
+                            deletedFiles++
+                        }
+                }
+            }
+            return JsonObject()
+                .put("deletedBlobs", deletedBlobs)
+                .put("deletedFiles", deletedFiles)
+                .put("freedBytes", freedBytes)
+        }
+    }
+
+    private fun attach(content: Path, fileDb: FileDb, isNew: Boolean) {
+        // NOTE: the content is hashed before the lock is taken, only the move is serialized
+        val digest = MessageDigest.getInstance("SHA-256")
+        DigestInputStream(Files.newInputStream(content).buffered(), digest).use { input ->
+            val buffer = ByteArray(BUFFER_SIZE)
+            while (input.read(buffer) >= 0) {
+                // read the whole content
+            }
+        }
+        val hash = digest.digest().joinToString("") { "%02x".format(it) }
+        val size = Files.size(content)
+        synchronized(LOCK) {
+            val blob = daoManager.fileBlobDao.getByHash(hash)
+            val blobPath = blobPath(hash)
+            if (blob != null && Files.exists(blobPath)) {
+                Files.delete(content)
+            } else {
+                Files.createDirectories(blobPath.parent)
+                Files.move(content, blobPath, StandardCopyOption.REPLACE_EXISTING)
+            }
+            fileDb.setBlob(hash, size)
+            daoManager.transaction {
+                if (blob == null) {
+                    daoManager.fileBlobDao.create(FileBlobDb(hash, size))
+                } else {
+                    blob.refCount++
+                    daoManager.fileBlobDao.update(blob)
+                }
+                if (isNew) {
+                    daoManager.fileDao.create(fileDb)
+                } else {
+                    daoManager.fileDao.update(fileDb)
+                }
+            }
+        }
+    }
+
+    private fun blobPath(hash: String): Path {
+        return Paths.get(FILE_STORAGE_PATH, BLOBS_DIR, hash.substring(0, 2), hash)
+    }
+
+    private fun legacyPath(id: Long): Path {
+        return Paths.get(FILE_STORAGE_PATH, id.toString())
+    }
+
+    companion object {
+
+        const val BLOBS_DIR = "blobs"
+        const val BUFFER_SIZE = 64 * 1024
+
+        private val LOCK = Any()
+        private val HASH_PATTERN = Regex("[0-9a-f]{64}")
+    }
+}
@@ -0,0 +1,84 @@
+package com.espero.yaade.services
+
+import com.espero.yaade.YAADE_HISTORY_MAX_BODY_SIZE
+import com.espero.yaade.YAADE_HISTORY_MAX_ENTRIES_PER_REQUEST
+import com.espero.yaade.db.DaoManager
+import com.espero.yaade.model.db.RequestHistoryDb
+import io.vertx.core.eventbus.Message
+import io.vertx.core.impl.logging.LoggerFactory
+import io.vertx.core.json.JsonObject
+import io.vertx.kotlin.coroutines.CoroutineVerticle
+
+// NOTE: this verticle is deployed as a worker, so the queue is only ever accessed
+// from one thread at a time and the invoke path only pays for an event bus send
+class RequestHistoryWriter(private val daoManager: DaoManager) : CoroutineVerticle() {
+
+    private val log = LoggerFactory.getLogger(RequestHistoryWriter::class.java)
+
+    private val queue = ArrayDeque<JsonObject>()
+    private var dropped = 0L
+    private var timerId = -1L
+
+    public override suspend fun start() {
+        vertx.eventBus().consumer(ADDRESS, this::record)
+        timerId = vertx.setPeriodic(FLUSH_INTERVAL) { flush() }
+    }
+
+    private fun record(msg: Message<JsonObject>) {
+        if (queue.size >= MAX_QUEUE_SIZE) {
+            dropped++
+            if (dropped % 1000 == 1L) {
+                log.warn("History queue is full, dropped $dropped entries so far")
+            }
+            return
+        }
+        queue.addLast(msg.body())
+        if (queue.size >= BATCH_SIZE) {
+            flush()
+        }
+    }
+
+    // NOTE: while a backup is imported the entries are held back and written into the
+    // restored database afterwards, the current database is about to be replaced
+    private fun flush() {
+        if (daoManager.isRestoring()) {
+            return
+        }
+        while (queue.isNotEmpty()) {
+            val batch = ArrayList<JsonObject>(BATCH_SIZE)
+            while (batch.size < BATCH_SIZE && queue.isNotEmpty()) {
+                batch.add(queue.removeFirst())
+            }
+            try {
+                write(batch)
+            } catch (e: Throwable) {
+                log.error("Failed to write ${batch.size} history entries", e)
+            }
+        }
+    }
+
+    private fun write(batch: List<JsonObject>) {
+        val entries = batch.map {
+            RequestHistoryDb.fromInvocation(it, YAADE_HISTORY_MAX_BODY_SIZE)
+        }
+        daoManager.transaction {
+            daoManager.requestHistoryDao.createAll(entries)
+            entries.map { it.requestId }.distinct().forEach {
+                daoManager.requestHistoryDao.pruneRequest(it, YAADE_HISTORY_MAX_ENTRIES_PER_REQUEST)
+            }
+        }
+    }
+
+    public override suspend fun stop() {
+        vertx.cancelTimer(timerId)
+        flush()
+    }
+
+    companion object {
+
+        const val ADDRESS = "history.record"
+        const val FLUSH_INTERVAL = 1000L
+        const val BATCH_SIZE = 100
+        const val MAX_QUEUE_SIZE = 10_000
+    }
+}
@@ -0,0 +1,88 @@
+package com.espero.yaade.services
+
+import com.espero.yaade.db.DaoManager
+import com.espero.yaade.model.db.CollectionDb
+import com.espero.yaade.model.db.UserDb
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import org.graalvm.polyglot.Context
+import org.graalvm.polyglot.Source
+import org.graalvm.polyglot.Value
+
+// NOTE: used by the script runner and the collection runner to add the headers of the
+// collection tree to a request and to interpolate it with an environment. Every collection
+// of the tree must be readable, otherwise a user who can only read a child collection
+// could send the headers of a parent, e.g. its auth header, to any url
+class RequestPreparer(
+    private val daoManager: DaoManager,
+    private val runtimeBuilder: ScriptRuntimeBuilder
+) {
+
+    private val interpolateSource: Source = loadInterpolateSource()
+
+    fun getParentTree(collection: CollectionDb, user: UserDb): List<CollectionDb> {
+        return getParentTree(collection) { it.canRead(user) }
+    }
+
+    fun getParentTree(collection: CollectionDb, groups: Set<String>): List<CollectionDb> {
+        return getParentTree(collection) {
+            groups.contains("admin") || it.groups().intersect(groups).isNotEmpty()
+        }
+    }
+
+    fun getCollectionTreeHeaders(parentTree: List<CollectionDb>, headers: JsonArray): JsonArray {
+        val collectionHeaders = parentTree.reversed().fold(JsonArray()) { acc, c ->
+            acc.addAll(c.jsonData().getJsonArray("headers", JsonArray()))
+        }
+        collectionHeaders.addAll(headers)
+        val result = JsonArray()
+        for (header in collectionHeaders) {
+            if (header is JsonObject && header.getBoolean("isEnabled", true)) {
+                result.add(header)
+            }
+        }
+        return result
+    }
+
+    // NOTE: returns the interpolate function, it can be called for many requests
+    fun initInterpolation(context: Context): Value {
+        runtimeBuilder.initRuntime(context)
+        context.eval(interpolateSource)
+        return context.getBindings("js").getMember("interpolate")
+    }
+
+    fun interpolate(interpolate: Value, request: JsonObject, envData: String): JsonObject {
+        val res = interpolate.execute(request.encode(), envData).asString()
+        val result = JsonObject(res)
+        val errors = result.getJsonArray("errors", JsonArray())
+        if (errors.size() > 0) {
+            throw RuntimeException(errors.encode())
+        }
+        return result.getJsonObject("result")
+    }
+
+    private fun getParentTree(
+        collection: CollectionDb,
+        canRead: (CollectionDb) -> Boolean
+    ): List<CollectionDb> {
+        val result = mutableListOf<CollectionDb>()
+        var current = collection
+        // NOTE: we cap at 10 to prevent infinite loops
+        for (i in 0..10) {
+            if (!canRead(current)) {
+                throw RuntimeException("Missing permissions for collection ${current.id}")
+            }
+            result.add(current)
+            val parentId = current.jsonData().getLong("parentId") ?: break
+            current = daoManager.collectionDao.getById(parentId) ?: break
+        }
+        return result
+    }
+
+    private fun loadInterpolateSource(): Source {
+        val stream = javaClass.getResourceAsStream("/interpolate.js")
+            ?: throw RuntimeException("interpolate.js file not found")
+        val script = stream.bufferedReader().use { it.readText() }
+        return Source.newBuilder("js", script, "interpolate.js").buildLiteral()
+    }
+}
@@ -1,13 +1,14 @@
 package com.espero.yaade.services
 
-import com.espero.yaade.FILE_STORAGE_PATH
 import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.CollectionDb
 import com.espero.yaade.model.db.UserDb
+import com.espero.yaade.server.utils.hashWithSHA256
 import io.vertx.core.MultiMap
 import io.vertx.core.Vertx
 import io.vertx.core.buffer.Buffer
 import io.vertx.core.http.HttpMethod
+import io.vertx.core.http.HttpVersion
 import io.vertx.core.json.JsonArray
 import io.vertx.core.json.JsonObject
 import io.vertx.ext.web.client.WebClient
@@ -21,12 +22,30 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.launch
 import java.net.URLEncoder
-import java.nio.file.Paths
 import kotlin.coroutines.CoroutineContext
 
 class RequestSender(private val vertx: Vertx, private val daoManager: DaoManager) : CoroutineScope {
 
     private val secretInterpolator = SecretInterpolator(daoManager)
+    private val fileStore = FileStore(daoManager)
+
+    // NOTE: clients are shared between requests with the same options so that connections
+    // are pooled and HTTP/2 streams to the same origin are multiplexed. An evicted client is
+    // only closed after its last request finished, so running requests are not cancelled
+    private val webClients = object : LinkedHashMap<String, CachedWebClient>(16, 0.75f, true) {
+        override fun removeEldestEntry(
+            eldest: MutableMap.MutableEntry<String, CachedWebClient>?
+        ): Boolean {
+            if (size <= MAX_CACHED_CLIENTS) {
+                return false
+            }
+            eldest?.value?.let {
+                it.evicted = true
+                closeIfUnused(it)
+            }
+            return true
+        }
+    }
     override val coroutineContext: CoroutineContext by lazy { vertx.dispatcher() + SupervisorJob() }
 
     init {
@@ -67,6 +86,7 @@ class RequestSender(private val vertx: Vertx, private val daoManager: DaoManager
             collection.jsonData().getJsonObject("settings")?.getJsonObject("webClientOptions")
                 ?: JsonObject()
         val webClientOptions = WebClientOptions(clientOptions)
+        configureHttp2(webClientOptions, clientOptions)
 
         if (url.startsWith("https") && user != null) {
             // TODO: improve performance by caching certificates
@@ -78,23 +98,21 @@ class RequestSender(private val vertx: Vertx, private val daoManager: DaoManager
                 }
             }
         }
-        val httpClient = WebClient.create(vertx, webClientOptions)
-
-        val httpRequest = httpClient.requestAbs(method, url)
-
-        interpolated.getJsonArray("headers")?.forEach { header ->
-            when (header) {
-                is JsonObject -> if (!header.getString("key").isNullOrEmpty())
-                    httpRequest.putHeader(header.getString("key"), header.getString("value"))
-            }
-        }
-
         val result = JsonObject()
         val t = System.currentTimeMillis()
+        val webClient = acquireWebClient(webClientOptions)
         try {
+            val httpRequest = webClient.client.requestAbs(method, url)
+            interpolated.getJsonArray("headers")?.forEach { header ->
+                when (header) {
+                    is JsonObject -> if (!header.getString("key").isNullOrEmpty())
+                        httpRequest.putHeader(header.getString("key"), header.getString("value"))
+                }
+            }
             val res = when (interpolated.getString("contentType", "")) {
                 "multipart/form-data" -> {
-                    val body = buildFormdataBody(interpolated.getJsonArray("formDataBody"))
+                    val body =
+                        buildFormdataBody(interpolated.getJsonArray("formDataBody"), user)
                     httpRequest.sendMultipartForm(body).coAwait()
                 }
 
@@ -114,11 +132,14 @@ class RequestSender(private val vertx: Vertx, private val daoManager: DaoManager
             result.put("body", res.bodyAsString() ?: "")
             result.put("status", res.statusCode())
             result.put("headers", jsonHeaders(res.headers()))
+            result.put("httpVersion", res.version()?.name)
             val size =
                 if (res.bodyAsString().isNullOrEmpty()) 0 else res.bodyAsString().toByteArray().size
             result.put("size", size)
         } catch (e: Throwable) {
             result.put("error", e.message)
+        } finally {
+            releaseWebClient(webClient)
         }
         val duration = System.currentTimeMillis() - t
         result.put("time", duration)
@@ -126,6 +147,47 @@ class RequestSender(private val vertx: Vertx, private val daoManager: DaoManager
         return result
     }
 
+    private fun configureHttp2(webClientOptions: WebClientOptions, clientOptions: JsonObject) {
+        val http2 = clientOptions.getBoolean("http2", false) ||
+                webClientOptions.protocolVersion == HttpVersion.HTTP_2
+        if (!http2) {
+            return
+        }
+        // NOTE: ALPN negotiates h2 over TLS and falls back to HTTP/1.1. For plain http
+        // we use h2c with prior knowledge unless an upgrade is explicitly requested
+        webClientOptions
+            .setProtocolVersion(HttpVersion.HTTP_2)
+            .setUseAlpn(true)
+            .setHttp2ClearTextUpgrade(clientOptions.getBoolean("http2ClearTextUpgrade", false))
+        if (!clientOptions.containsKey("http2MultiplexingLimit")) {
+            webClientOptions.setHttp2MultiplexingLimit(DEFAULT_HTTP2_MULTIPLEXING_LIMIT)
+        }
+    }
+
+    private fun acquireWebClient(webClientOptions: WebClientOptions): CachedWebClient {
+        val key = hashWithSHA256(webClientOptions.toJson().encode())
+        synchronized(webClients) {
+            val cached = webClients.getOrPut(key) {
+                CachedWebClient(WebClient.create(vertx, webClientOptions))
+            }
+            cached.inFlight++
+            return cached
+        }
+    }
+
+    private fun releaseWebClient(cached: CachedWebClient) {
+        synchronized(webClients) {
+            cached.inFlight--
+            closeIfUnused(cached)
+        }
+    }
+
+    private fun closeIfUnused(cached: CachedWebClient) {
+        if (cached.evicted && cached.inFlight == 0) {
+            cached.client.close()
+        }
+    }
+
     private fun buildFormUrlencodedBody(request: JsonObject): String {
         if (request.getJsonArray("formDataBody") == null) {
             return request.getString("body", "")
@@ -139,7 +201,7 @@ class RequestSender(private val vertx: Vertx, private val daoManager: DaoManager
             }
     }
 
-    private fun buildFormdataBody(body: JsonArray?): MultipartForm {
+    private fun buildFormdataBody(body: JsonArray?, user: UserDb?): MultipartForm {
         val result = MultipartForm.create()
         if (body == null) {
             return result
@@ -159,9 +221,8 @@ class RequestSender(private val vertx: Vertx, private val daoManager: DaoManager
 
                 "file" -> {
                     val file = entry.getJsonObject("file") ?: continue
-                    val fileId = file.getString("id") ?: continue
                     val filename = file.getString("name") ?: "unknown"
-                    val filePath = Paths.get(FILE_STORAGE_PATH, fileId)
+                    val filePath = fileStore.pathOfReference(file, user) ?: continue
                     result.binaryFileUpload(
                         key,
                         filename,
@@ -196,4 +257,15 @@ class RequestSender(private val vertx: Vertx, private val daoManager: DaoManager
         return result
     }
 
+    private class CachedWebClient(val client: WebClient) {
+
+        var inFlight = 0
+        var evicted = false
+    }
+
+    companion object {
+
+        const val MAX_CACHED_CLIENTS = 64
+        const val DEFAULT_HTTP2_MULTIPLEXING_LIMIT = 100
+    }
 }
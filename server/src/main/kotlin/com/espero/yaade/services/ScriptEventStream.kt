@@ -0,0 +1,77 @@
+package com.espero.yaade.services
+
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+
+// NOTE: events are pushed from the script runner thread and published in batches on the
+// event bus, so a script that logs in a tight loop does not flood the event loop.
+// Events that do not fit into the buffer are dropped and counted
+class ScriptEventStream(
+    private val vertx: Vertx,
+    private val scriptId: Long,
+    private val runId: String
+) {
+
+    private val buffer = ArrayDeque<JsonObject>()
+    private var dropped = 0L
+    private var flushScheduled = false
+    private var closed = false
+
+    fun push(type: String, data: JsonObject) {
+        synchronized(this) {
+            if (closed) {
+                return
+            }
+            if (buffer.size >= MAX_BUFFERED_EVENTS) {
+                dropped++
+                return
+            }
+            buffer.addLast(data.put("type", type))
+            if (flushScheduled) {
+                return
+            }
+            flushScheduled = true
+        }
+        vertx.setTimer(FLUSH_INTERVAL) { flush() }
+    }
+
+    fun close(result: JsonObject) {
+        synchronized(this) {
+            if (closed) {
+                return
+            }
+            buffer.addLast(result.put("type", "finished"))
+            closed = true
+        }
+        flush()
+    }
+
+    private fun flush() {
+        val message = synchronized(this) {
+            flushScheduled = false
+            if (buffer.isEmpty()) {
+                return
+            }
+            val events = JsonArray(ArrayList<Any>(buffer))
+            buffer.clear()
+            JsonObject()
+                .put("scriptId", scriptId)
+                .put("runId", runId)
+                .put("events", events)
+                .put("dropped", dropped)
+        }
+        vertx.eventBus().publish(address(scriptId), message)
+    }
+
+    companion object {
+
+        const val ADDRESS_PREFIX = "script.stream."
+        const val FLUSH_INTERVAL = 100L
+        const val MAX_BUFFERED_EVENTS = 1000
+
+        fun address(scriptId: Long): String {
+            return ADDRESS_PREFIX + scriptId
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.espero.yaade.services
+
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import org.graalvm.polyglot.HostAccess.Export
+import org.graalvm.polyglot.Value
+
+// NOTE: jasmine results and logs are pushed into this object from index.js while the script
+// runs. Values are converted as they arrive, so building the report at the end only needs
+// hash lookups instead of serialising everything in JS and parsing it back.
+// Logs and finished specs are also forwarded to the event stream of the run, if there is one
+class ScriptReporter(private val stream: ScriptEventStream? = null) {
+
+    // NOTE: suites are kept in the order they were started, like the jsApiReporter does
+    private val suites = LinkedHashMap<String, JsonObject>()
+    private val specsBySuite = HashMap<String, MutableList<JsonObject>>()
+    private val logs = JsonArray()
+    private var droppedLogs = 0L
+
+    @Export
+    fun suiteStarted(result: Value) {
+        storeSuite(result)
+    }
+
+    @Export
+    fun suiteDone(result: Value) {
+        storeSuite(result)
+    }
+
+    @Export
+    fun specDone(result: Value) {
+        val spec = toJson(result, 0) as? JsonObject ?: return
+        val suiteId = spec.getString("parentSuiteId") ?: return
+        specsBySuite.getOrPut(suiteId) { ArrayList() }.add(spec)
+        stream?.push("spec", JsonObject().put("spec", spec))
+    }
+
+    @Export
+    fun log(time: Long, message: String?) {
+        stream?.push("log", JsonObject().put("time", time).put("message", message))
+        // NOTE: the stream has its own buffer, this only limits the logs kept for the result
+        if (logs.size() >= MAX_LOGS) {
+            droppedLogs++
+            return
+        }
+        logs.add(JsonObject().put("time", time).put("message", message))
+    }
+
+    fun getLogs(): JsonArray {
+        return logs
+    }
+
+    fun getDroppedLogs(): Long {
+        return droppedLogs
+    }
+
+    fun getJasmineReport(): JsonObject {
+        var overallStatus = "passed"
+        val roots = ArrayList<JsonObject>()
+        val childrenBySuite = HashMap<String, JsonArray>()
+        for ((id, suite) in suites) {
+            val specs = (specsBySuite[id] ?: emptyList()).sortedBy { it.getString("id") }
+            val failed = specs.any { it.getString("status", "passed") == "failed" }
+            if (failed) {
+                overallStatus = "failed"
+            }
+            suite.put("specs", JsonArray(specs))
+            suite.put("status", if (failed) "failed" else "passed")
+            val parentId = suite.getString("parentSuiteId")
+            if (parentId == null) {
+                roots.add(suite)
+            } else if (suites.containsKey(parentId)) {
+                childrenBySuite.getOrPut(parentId) { JsonArray() }.add(suite)
+            }
+        }
+        for ((id, children) in childrenBySuite) {
+            suites[id]?.put("children", children)
+        }
+        return JsonObject()
+            .put("suites", JsonArray(roots.sortedBy { it.getString("id") }))
+            .put("status", overallStatus)
+    }
+
+    private fun storeSuite(result: Value) {
+        val suite = toJson(result, 0) as? JsonObject ?: return
+        val id = suite.getString("id") ?: return
+        suites[id] = suite
+    }
+
+    private fun toJson(value: Value?, depth: Int): Any? {
+        if (value == null || value.isNull || depth > MAX_DEPTH) {
+            return null
+        }
+        return when {
+            value.isBoolean -> value.asBoolean()
+            value.isString -> value.asString()
+            value.isNumber -> if (value.fitsInLong()) value.asLong() else value.asDouble()
+            value.hasArrayElements() -> {
+                val result = JsonArray()
+                for (i in 0 until value.arraySize) {
+                    result.add(toJson(value.getArrayElement(i), depth + 1))
+                }
+                result
+            }
+
+            value.hasMembers() -> {
+                val result = JsonObject()
+                for (key in value.memberKeys) {
+                    val member = value.getMember(key)
+                    if (member != null && !member.canExecute()) {
+                        result.put(key, toJson(member, depth + 1))
+                    }
+                }
+                result
+            }
+
+            else -> value.toString()
+        }
+    }
+
+    companion object {
+
+        private const val MAX_DEPTH = 16
+        private const val MAX_LOGS = 10_000
+    }
+}
@@ -1,6 +1,5 @@
 package com.espero.yaade.services
 
-import com.espero.yaade.SCRIPT_RUNNER_TIMEOUT
 import com.espero.yaade.db.DaoManager
 import com.espero.yaade.model.db.CollectionDb
 import io.vertx.core.Future
@@ -11,96 +10,133 @@ import io.vertx.core.json.JsonArray
 import io.vertx.core.json.JsonObject
 import io.vertx.kotlin.coroutines.CoroutineVerticle
 import org.graalvm.polyglot.Context
+import org.graalvm.polyglot.Engine
 import org.graalvm.polyglot.HostAccess
 import org.graalvm.polyglot.HostAccess.Export
+import org.graalvm.polyglot.ResourceLimits
 import org.graalvm.polyglot.SandboxPolicy
+import org.graalvm.polyglot.Source
 import org.graalvm.polyglot.Value
+import org.graalvm.polyglot.proxy.ProxyArray
 import org.graalvm.polyglot.proxy.ProxyObject
 import org.openapitools.codegen.examples.Environment
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.InputStream
+import java.io.OutputStream
+import java.lang.management.ManagementFactory
+import java.util.UUID
 import java.util.concurrent.*
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.AtomicReference
+import java.util.function.Predicate
 
 class ScriptRunner(private val daoManager: DaoManager) : CoroutineVerticle() {
 
     private val executor: ExecutorService = Executors.newCachedThreadPool()
     private val runtimeBuilder = ScriptRuntimeBuilder()
-    private val contextBuilder = Context.newBuilder("js")
-        .sandbox(SandboxPolicy.CONSTRAINED)
-        .`in`(ByteArrayInputStream(ByteArray(0)))
-        .allowHostAccess(HostAccess.CONSTRAINED)
-        .option("engine.WarnInterpreterOnly", "false")
-    private lateinit var indexFile: String
-    private lateinit var interpolateFile: String
+    private val requestPreparer = RequestPreparer(daoManager, runtimeBuilder)
+    private lateinit var indexSource: Source
+    private val engine = newEngine()
+    private val tierEngines = ScriptTier.entries.associateWith { newEngine() }
+    private val scriptSources = ScriptSourceCache(MAX_CACHED_SCRIPTS)
+    private val metrics = ConcurrentHashMap<Long, ScriptMetrics>()
+    private val ownerUsage = ConcurrentHashMap<Long, OwnerUsage>()
+    private val threadMXBean = ManagementFactory.getThreadMXBean()
 
     public override suspend fun start() {
         val inputStream: InputStream = javaClass.getResourceAsStream("/index.js")
             ?: throw IllegalArgumentException("File not found in resources")
-        indexFile = inputStream.bufferedReader().use { it.readText() }
-        val interpolateStream: InputStream = javaClass.getResourceAsStream("/interpolate.js")
-            ?: throw IllegalArgumentException("File not found in resources")
-        interpolateFile = interpolateStream.bufferedReader().use { it.readText() }
+        indexSource = Source.newBuilder(
+            "js", inputStream.bufferedReader().use { it.readText() }, "index.js"
+        ).buildLiteral()
         vertx.eventBus().consumer("script.run", this::run)
+        vertx.eventBus().consumer("script.metrics", this::getMetrics)
+        // NOTE: warming up every engine fills the code caches of the bundled libraries
         CompletableFuture.runAsync({
-            val context = newContext(ByteArrayOutputStream())
-            runtimeBuilder.initRuntime(context)
-            val globalBindings: Value = context.getBindings("js")
-            globalBindings.putMember("hello", "world")
-            context.eval("js", "console.log(hello)")
-            context.close(true)
+            ScriptTier.entries.forEach { tier ->
+                val context = newScriptContext(ByteArrayOutputStream(), tier) {}
+                runtimeBuilder.initRuntime(context)
+                val globalBindings: Value = context.getBindings("js")
+                globalBindings.putMember("hello", "world")
+                context.eval("js", "console.log(hello)")
+                context.close(true)
+            }
         }, executor)
     }
 
+    public override suspend fun stop() {
+        executor.shutdownNow()
+        tierEngines.values.forEach { it.close(true) }
+        engine.close(true)
+    }
+
     fun run(msg: Message<JsonObject>) {
         val outReference = AtomicReference<ByteArrayOutputStream>()
         val contextReference = AtomicReference<Context>()
         val envName = msg.body().getString("envName")
+        val scriptId = msg.body().getLong("scriptId")
+        val ownerId = msg.body().getLong("ownerId")
+        val tier = ScriptTier.fromName(msg.body().getString("tier"))
+        val limitReached = AtomicBoolean(false)
+        val timings = RunTimings()
+        val runId = UUID.randomUUID().toString()
+        val stream = scriptId?.let { ScriptEventStream(vertx, it, runId) }
+        stream?.push("started", JsonObject().put("envName", envName))
         val f = CompletableFuture.supplyAsync({
+            val cpuStart = threadMXBean.currentThreadCpuTime
             val script = msg.body().getString("script")
             val collectionId = msg.body().getLong("collectionId")
             val collection = daoManager.collectionDao.getById(collectionId)
                 ?: throw IllegalArgumentException("Collection not found for id: $collectionId")
             val out = ByteArrayOutputStream()
             outReference.set(out)
-            val context = newContext(out)
+            val context = timings.measure(PHASE_CONTEXT) {
+                newScriptContext(out, tier) { limitReached.set(true) }
+            }
             contextReference.set(context)
             val continuation = ContinuationWrapper()
+            val reporter = ScriptReporter(stream)
             val startTime = System.currentTimeMillis()
             val ownerGroups =
                 msg.body().getJsonArray("ownerGroups", JsonArray()).map { it as String }.toSet()
             val additionalEnvData =
                 (msg.body().getJsonObject("additionalEnvData") ?: JsonObject())
                     .associate { it.key to it.value as String }
-            val globalBindings =
-                createGlobalBindings(context, collection, envName, ownerGroups, additionalEnvData)
-            globalBindings.putMember(
-                "__continuation",
-                continuation
-            )
-            runtimeBuilder.initRuntime(context)
-            context.eval("js", indexFile.format(script))
-            while (!continuation.finished.get() && System.currentTimeMillis() - startTime < SCRIPT_RUNNER_TIMEOUT) {
-                Thread.sleep(10)
+            val globalBindings = timings.measure(PHASE_RUNTIME_INIT) {
+                val globalBindings = createGlobalBindings(
+                    context, collection, envName, ownerGroups, additionalEnvData, timings
+                )
+                globalBindings.putMember(
+                    "__continuation",
+                    continuation
+                )
+                globalBindings.putMember("__timings", timings)
+                globalBindings.putMember("__reporter", reporter)
+                runtimeBuilder.initRuntime(context)
+                globalBindings
             }
-            if (!continuation.finished.get()) {
-                throw RuntimeException("Script execution timed out")
+            val evaluationStart = System.nanoTime()
+            context.eval(indexSource)
+            val scriptFunction = context.eval(scriptSources.get(script))
+            globalBindings.getMember("__run").executeVoid(scriptFunction)
+            awaitContinuation(continuation, startTime, tier, limitReached)
+            timings.addEvaluation(evaluationStart, System.nanoTime())
+            val result = timings.measure(PHASE_REPORT) {
+                createResult(globalBindings, reporter, envName ?: "")
             }
-            val result = createResult(globalBindings, envName ?: "")
             continuation.finished.set(false)
+            val callbackStart = System.nanoTime()
             globalBindings.getMember("__doCallback").execute(result.encode())
-            while (!continuation.finished.get() && System.currentTimeMillis() - startTime < SCRIPT_RUNNER_TIMEOUT) {
-                Thread.sleep(10)
-            }
-            if (!continuation.finished.get()) {
-                throw RuntimeException("Script execution timed out")
-            }
-            result
+            awaitContinuation(continuation, startTime, tier, limitReached)
+            timings.add(PHASE_CALLBACK, System.nanoTime() - callbackStart)
+            timings.addCpu(threadMXBean.currentThreadCpuTime - cpuStart)
+            result.put("timings", timings.toJson()).put("runId", runId)
         }, executor)
         // NOTE: we add a little extra timeout to better differentiate which timeout happened
-        f.orTimeout(SCRIPT_RUNNER_TIMEOUT + 500, TimeUnit.MILLISECONDS)
+        f.orTimeout(tier.timeout + 500, TimeUnit.MILLISECONDS)
             .whenComplete { result: JsonObject?, ex: Throwable? ->
                 val out = outReference.get() ?: throw RuntimeException("Output stream not found")
                 val context = contextReference.get() ?: throw RuntimeException("Context not found")
@@ -112,138 +148,203 @@ class ScriptRunner(private val daoManager: DaoManager) : CoroutineVerticle() {
                 if (ex != null) {
                     context.close(true)
                     f.cancel(true)
-                    val errorMessage = when (ex) {
-                        is TimeoutException -> "Script execution timed out"
+                    val errorMessage = when {
+                        limitReached.get() -> "Script exceeded the statement limit"
+                        ex is TimeoutException -> "Script execution timed out"
                         else -> ex.message
                     }
+                    scriptId?.let { recordMetrics(it, null) }
+                    ownerId?.let { recordOwnerUsage(it, timings, limitReached.get()) }
+                    stream?.close(JsonObject().put("success", false).put("error", errorMessage))
                     msg.reply(
                         JsonObject()
                             .put("success", false)
                             .put("executionTime", System.currentTimeMillis())
                             .put("error", errorMessage)
                             .put("envName", envName)
+                            .put("timings", timings.toJson())
+                            .put("runId", runId)
                     )
                 } else {
                     context.close()
+                    scriptId?.let { recordMetrics(it, timings) }
+                    ownerId?.let { recordOwnerUsage(it, timings, false) }
+                    stream?.close(
+                        JsonObject()
+                            .put("success", result?.getBoolean("success"))
+                            .put("error", result?.getString("error"))
+                    )
                     msg.reply(result)
                 }
             }
     }
 
+    private fun recordMetrics(scriptId: Long, timings: RunTimings?) {
+        // NOTE: ad hoc runs can carry any id, so the number of tracked scripts is bounded
+        if (metrics.size >= MAX_METRICS_SCRIPTS && !metrics.containsKey(scriptId)) {
+            return
+        }
+        metrics.computeIfAbsent(scriptId) { ScriptMetrics() }.record(timings)
+    }
+
+    private fun recordOwnerUsage(ownerId: Long, timings: RunTimings, limitReached: Boolean) {
+        ownerUsage.computeIfAbsent(ownerId) { OwnerUsage() }.record(timings, limitReached)
+    }
+
+    private fun getMetrics(msg: Message<Any>) {
+        val scripts = JsonObject()
+        metrics.forEach { (scriptId, scriptMetrics) ->
+            scripts.put(scriptId.toString(), scriptMetrics.toJson())
+        }
+        val owners = JsonObject()
+        ownerUsage.forEach { (ownerId, usage) ->
+            owners.put(ownerId.toString(), usage.toJson())
+        }
+        msg.reply(JsonObject().put("scripts", scripts).put("owners", owners))
+    }
+
+    private fun awaitContinuation(
+        continuation: ContinuationWrapper,
+        startTime: Long,
+        tier: ScriptTier,
+        limitReached: AtomicBoolean
+    ) {
+        while (!continuation.finished.get() && !limitReached.get() &&
+            System.currentTimeMillis() - startTime < tier.timeout
+        ) {
+            Thread.sleep(10)
+        }
+        if (limitReached.get()) {
+            throw RuntimeException("Script exceeded the statement limit of ${tier.statementLimit}")
+        }
+        if (!continuation.finished.get()) {
+            throw RuntimeException("Script execution timed out")
+        }
+    }
+
     private fun prepareExec(
         requestId: Long,
         envName: String?,
         ownerGroups: Set<String>
     ): CompletableFuture<JsonObject> {
-        val request = daoManager.requestDao.getById(requestId)
-            ?: throw IllegalArgumentException("Request not found for id: $requestId")
-        val collection = daoManager.collectionDao.getById(request.collectionId)
-            ?: throw IllegalArgumentException("Collection not found for id: ${request.collectionId}")
-        if (collection.groups().intersect(ownerGroups)
-                .isEmpty() && !ownerGroups.contains("admin")
-        ) {
-            throw IllegalArgumentException("Owner of script does not have the necessary permissions")
-        }
-        val parentTree = getParentTree(collection, ownerGroups)
-        val envData = getMergedEnvData(collection, envName, parentTree)
-        val requestHeaders = request.jsonData().getJsonArray("headers", JsonArray())
-        val headers = getCollectionTreeHeaders(parentTree, requestHeaders)
-        val requestData = request.jsonData().copy().put("headers", headers)
-        return CompletableFuture.supplyAsync(
-            { interpolate(requestData, collection, envName, envData ?: JsonObject()) },
-            executor
-        )
+        return prepareExecAll(listOf(requestId), envName, ownerGroups).thenApply { it[0] }
     }
 
-    private fun getCollectionTreeHeaders(
-        parentTree: List<CollectionDb>,
-        headers: JsonArray
-    ): JsonArray {
-        val collectionHeaders = parentTree.reversed().fold(JsonArray()) { acc, c ->
-            acc.addAll(c.jsonData().getJsonArray("headers", JsonArray()))
-        }
-        collectionHeaders.addAll(headers)
-        val result = JsonArray()
-        for (header in collectionHeaders) {
-            if (header is JsonObject) {
-                if (header.getBoolean("isEnabled", true)) {
-                    result.add(header)
-                }
+    // NOTE: the parent tree and environment of every collection are resolved once
+    // and all requests are interpolated in the same context
+    private fun prepareExecAll(
+        requestIds: List<Long>,
+        envName: String?,
+        ownerGroups: Set<String>
+    ): CompletableFuture<List<JsonObject>> {
+        val requests = daoManager.requestDao.getByIds(requestIds.distinct()).associateBy { it.id }
+        val collections = HashMap<Long, ExecCollection>()
+        val prepared = requestIds.map { requestId ->
+            val request = requests[requestId]
+                ?: throw IllegalArgumentException("Request not found for id: $requestId")
+            val collection = collections.getOrPut(request.collectionId) {
+                prepareExecCollection(request.collectionId, envName, ownerGroups)
             }
+            val requestHeaders = request.jsonData().getJsonArray("headers", JsonArray())
+            val headers =
+                requestPreparer.getCollectionTreeHeaders(collection.parentTree, requestHeaders)
+            ExecRequest(request.jsonData().copy().put("headers", headers), collection)
         }
-        return result
+        return CompletableFuture.supplyAsync({ interpolate(prepared, envName) }, executor)
     }
 
-    private fun interpolate(
-        request: JsonObject,
-        collection: CollectionDb,
+    private fun prepareExecCollection(
+        collectionId: Long,
         envName: String?,
-        envData: JsonObject,
-    ): JsonObject {
+        ownerGroups: Set<String>
+    ): ExecCollection {
+        val collection = daoManager.collectionDao.getById(collectionId)
+            ?: throw IllegalArgumentException("Collection not found for id: $collectionId")
+        if (collection.groups().intersect(ownerGroups)
+                .isEmpty() && !ownerGroups.contains("admin")
+        ) {
+            throw IllegalArgumentException("Owner of script does not have the necessary permissions")
+        }
+        val parentTree = requestPreparer.getParentTree(collection, ownerGroups)
+        val envData =
+            if (envName != null) daoManager.collectionDao.getMergedEnvData(collection.id, envName)
+            else null
+        return ExecCollection(collection.id, parentTree, (envData ?: JsonObject()).encode())
+    }
+
+    private fun interpolate(requests: List<ExecRequest>, envName: String?): List<JsonObject> {
         if (envName == null) {
-            return request
+            return requests.map {
+                JsonObject()
+                    .put("data", it.data)
+                    .put("collectionId", it.collection.id)
+            }
         }
         val out = ByteArrayOutputStream()
         newContext(out).use { context ->
-            runtimeBuilder.initRuntime(context)
-            val globalBindings = context.getBindings("js")
-            context.eval("js", interpolateFile)
-            val res =
-                globalBindings.getMember("interpolate").execute(request.encode(), envData.encode())
-                    .asString()
+            val interpolate = requestPreparer.initInterpolation(context)
+            val results = requests.map {
+                val data =
+                    requestPreparer.interpolate(interpolate, it.data, it.collection.envData)
+                JsonObject()
+                    .put("data", data)
+                    .put("collectionId", it.collection.id)
+                    .put("envName", envName)
+            }
             val outString = out.toString()
             if (outString.trimIndent().isNotEmpty()) {
                 println(outString)
             }
-            val result = JsonObject(res)
-            val errors = result.getJsonArray("errors", JsonArray())
-            if (errors.size() > 0) {
-                throw RuntimeException(errors.encode())
-            }
-            return JsonObject()
-                .put("data", result.getJsonObject("result"))
-                .put("collectionId", collection.id)
-                .put("envName", envName)
+            return results
         }
     }
 
-    private fun getParentTree(
-        collection: CollectionDb,
-        ownerGroups: Set<String>,
-        i: Int = 0
-    ): List<CollectionDb> {
-        if (i > 10) {
-            return emptyList()
-        }
-        if (!ownerGroups.contains("admin") && collection.groups().intersect(ownerGroups).isEmpty())
-            throw RuntimeException("Owner of script does not have the necessary permissions")
-        val parentId = collection.jsonData().getLong("parentId") ?: return listOf(collection)
-        val c = daoManager.collectionDao.getById(parentId)
-            ?: return listOf(collection)
-        return listOf(collection) + getParentTree(c, ownerGroups, i + 1)
+    // NOTE: contexts of a shared engine reuse the parsed and compiled code of sources
+    // that were already evaluated. Contexts with statement limits need an engine per tier,
+    // because all contexts of an engine must use the same limit
+    private fun newEngine(): Engine {
+        return Engine.newBuilder("js")
+            .sandbox(SandboxPolicy.CONSTRAINED)
+            .out(OutputStream.nullOutputStream())
+            .err(OutputStream.nullOutputStream())
+            .option("engine.WarnInterpreterOnly", "false")
+            .build()
     }
 
-    private fun getMergedEnvData(
-        collection: CollectionDb,
-        envName: String?,
-        parentTree: List<CollectionDb>
-    ): JsonObject? {
-        if (envName == null) return null
-        if (collection.jsonData().getJsonObject("envs")?.getJsonObject(envName) == null) return null
-        val envs: MutableList<JsonObject> = mutableListOf()
-        var currentEnvName = envName
-        for (c in parentTree) {
-            val envData = c.jsonData().getJsonObject("envs")?.getJsonObject(currentEnvName)
-                ?: break
-            envs.add(envData.getJsonObject("data"))
-            currentEnvName = envData.getString("parentEnvName", "")
-            if (currentEnvName.isEmpty()) break
-        }
-        return envs.reversed().fold(JsonObject()) { acc, json -> acc.mergeIn(json) }
+    private fun newContextBuilder(engine: Engine, out: ByteArrayOutputStream): Context.Builder {
+        return Context.newBuilder("js")
+            .engine(engine)
+            .sandbox(SandboxPolicy.CONSTRAINED)
+            .`in`(ByteArrayInputStream(ByteArray(0)))
+            .allowHostAccess(HostAccess.CONSTRAINED)
+            .out(out)
+            .err(out)
     }
 
     private fun newContext(out: ByteArrayOutputStream): Context {
-        return contextBuilder.out(out).err(out).build()
+        return newContextBuilder(engine, out).build()
+    }
+
+    // NOTE: only statements of the user script count towards the limit, not the ones of
+    // the bundled libraries. The heap limit is only supported by some GraalVM editions
+    private fun newScriptContext(
+        out: ByteArrayOutputStream,
+        tier: ScriptTier,
+        onLimit: () -> Unit
+    ): Context {
+        val builder = newContextBuilder(tierEngines.getValue(tier), out)
+        if (tier.statementLimit > 0) {
+            builder.resourceLimits(
+                ResourceLimits.newBuilder()
+                    .statementLimit(tier.statementLimit, SCRIPT_SOURCE_FILTER)
+                    .onLimit { onLimit() }
+                    .build()
+            )
+        }
+        if (tier.maxHeapMemory != null) {
+            builder.option("sandbox.MaxHeapMemory", tier.maxHeapMemory)
+        }
+        return builder.build()
     }
 
     private fun createGlobalBindings(
@@ -251,10 +352,11 @@ class ScriptRunner(private val daoManager: DaoManager) : CoroutineVerticle() {
         collection: CollectionDb,
         envName: String?,
         ownerGroups: Set<String>,
-        additionalEnvData: Map<String, String>
+        additionalEnvData: Map<String, String>,
+        timings: RunTimings
     ): Value {
         val globalBindings: Value = context.getBindings("js")
-        globalBindings.putMember("__exec", Exec(vertx.eventBus(), ownerGroups, this))
+        globalBindings.putMember("__exec", Exec(vertx.eventBus(), ownerGroups, this, timings))
         globalBindings.putMember(
             "env",
             Environment(
@@ -267,85 +369,165 @@ class ScriptRunner(private val daoManager: DaoManager) : CoroutineVerticle() {
         return globalBindings
     }
 
-    private fun createResult(globalBindings: Value, envName: String): JsonObject {
-        val jasmineReport = getJasmineReport(globalBindings)
+    private fun createResult(
+        globalBindings: Value,
+        reporter: ScriptReporter,
+        envName: String
+    ): JsonObject {
+        val jasmineReport = reporter.getJasmineReport()
         val executionTime = System.currentTimeMillis()
-        val logs = getLogs(globalBindings)
+        val logs = reporter.getLogs()
         val error = globalBindings.getMember("__internalError")?.asString()
-        val success = error == null &&
-                (jasmineReport == null || jasmineReport.getString("status") == "passed")
+        val success = error == null && jasmineReport.getString("status") == "passed"
         return JsonObject()
             .put("success", success)
             .put("executionTime", executionTime)
             .put("jasmineReport", jasmineReport)
             .put("logs", logs)
+            .put("droppedLogs", reporter.getDroppedLogs())
             .put("error", error)
             .put("envName", envName)
     }
 
-    private fun getJasmineReport(globalBindings: Value): JsonObject? {
-        try {
-            val report = globalBindings.getMember("jsApiReporter") ?: return null
-            val suitesValue = report.getMember("suites").execute() ?: return null
-            val rawSuites = suitesValue.asString()
-            val suitesObject = JsonObject(rawSuites)
-            val suites = suitesObject.map { it.value as JsonObject }
-            val specsValue = report.getMember("specs").execute() ?: return null
-            val rawSpecs = specsValue.asString()
-            val specs = JsonArray(rawSpecs)
-
-            val result = JsonArray()
-
-            for (rawSpec in specs) {
-                val spec = rawSpec as JsonObject
-                val suiteId = spec.getString("parentSuiteId") ?: continue
-                val suite = suites.find { it.getString("id") == suiteId } ?: continue
-                val newSpecs = suite.getJsonArray("specs", JsonArray()).add(spec)
-                suite.put("specs", newSpecs)
-            }
+    // NOTE: all phases are measured in nanoseconds and reported in milliseconds.
+    // Exec calls can run in parallel, so their total can exceed the evaluation phases
+    class RunTimings {
 
-            var overallStatus = "passed"
-
-            for (suite in suites) {
-                val sortedSpecs = suite.getJsonArray("specs", JsonArray()).map { it as JsonObject }
-                    .sortedBy { it.getString("id") }
-                suite.put("specs", JsonArray(sortedSpecs))
-                var status = "passed"
-                val suiteSpecs = suite.getJsonArray("specs", JsonArray())
-                for (rawSpec in suiteSpecs) {
-                    val spec = rawSpec as JsonObject
-                    val specStatus = spec.getString("status", "passed")
-                    if (specStatus == "failed") {
-                        status = "failed"
-                        overallStatus = "failed"
-                        break
-                    }
-                }
-                suite.put("status", status)
-                val parentId = suite.getString("parentSuiteId")
-                if (parentId == null) {
-                    result.add(suite)
-                    continue
-                }
-                val parent = suites.find { it.getString("id") == parentId } ?: continue
-                val children = parent.getJsonArray("children", JsonArray()).add(suite)
-                parent.put("children", children)
+        private val start = System.nanoTime()
+        private val phases = ConcurrentHashMap<String, Long>()
+        private val execCalls = AtomicInteger(0)
+        private val execTime = AtomicLong(0)
+
+        @Volatile
+        private var scriptEvaluatedAt: Long? = null
+
+        fun <T> measure(phase: String, block: () -> T): T {
+            val phaseStart = System.nanoTime()
+            try {
+                return block()
+            } finally {
+                add(phase, System.nanoTime() - phaseStart)
             }
+        }
 
-            val sortedResult = result.map { it as JsonObject }.sortedBy { it.getString("id") }
+        fun add(phase: String, nanos: Long) {
+            phases.merge(phase, nanos, Long::plus)
+        }
+
+        // NOTE: the script evaluation ends when index.js calls markScriptEvaluated,
+        // the rest of the evaluation is spent in jasmine
+        fun addEvaluation(evaluationStart: Long, evaluationEnd: Long) {
+            val scriptEnd = scriptEvaluatedAt ?: evaluationEnd
+            add(PHASE_SCRIPT, scriptEnd - evaluationStart)
+            add(PHASE_JASMINE, evaluationEnd - scriptEnd)
+        }
 
-            return JsonObject().put("suites", sortedResult).put("status", overallStatus)
-        } catch (e: Exception) {
-            e.printStackTrace()
+        fun addCpu(nanos: Long) {
+            add(PHASE_CPU, nanos)
         }
 
-        return null
+        fun addExec(nanos: Long) {
+            execCalls.incrementAndGet()
+            execTime.addAndGet(nanos)
+        }
+
+        @Export
+        fun markScriptEvaluated() {
+            scriptEvaluatedAt = System.nanoTime()
+        }
+
+        fun phaseMillis(phase: String): Double {
+            return toMillis(phases[phase] ?: 0)
+        }
+
+        fun execMillis(): Double {
+            return toMillis(execTime.get())
+        }
+
+        fun totalMillis(): Double {
+            return toMillis(System.nanoTime() - start)
+        }
+
+        fun toJson(): JsonObject {
+            val result = JsonObject()
+            PHASES.forEach { result.put(it, phaseMillis(it)) }
+            return result
+                .put(PHASE_CPU, phaseMillis(PHASE_CPU))
+                .put("exec", execMillis())
+                .put("execCalls", execCalls.get())
+                .put("total", totalMillis())
+        }
+
+        private fun toMillis(nanos: Long): Double {
+            return Math.round(nanos / 10_000.0) / 100.0
+        }
     }
 
-    private fun getLogs(globalBindings: Value): JsonArray {
-        val logs = globalBindings.getMember("__getInternalLogs").execute() ?: return JsonArray()
-        val rawLogs = logs.asString()
-        return JsonArray(rawLogs)
+    class ScriptMetrics {
+
+        private var runs = 0L
+        private var failedRuns = 0L
+        private var lastRun = 0L
+        private var maxTotal = 0.0
+        private val totals = HashMap<String, Double>()
+
+        @Synchronized
+        fun record(timings: RunTimings?) {
+            lastRun = System.currentTimeMillis()
+            if (timings == null) {
+                failedRuns++
+                return
+            }
+            runs++
+            PHASES.forEach { totals.merge(it, timings.phaseMillis(it), Double::plus) }
+            totals.merge("exec", timings.execMillis(), Double::plus)
+            val total = timings.totalMillis()
+            totals.merge("total", total, Double::plus)
+            maxTotal = maxOf(maxTotal, total)
+        }
+
+        @Synchronized
+        fun toJson(): JsonObject {
+            val average = JsonObject()
+            totals.forEach { (phase, total) ->
+                average.put(phase, Math.round(total / runs * 100) / 100.0)
+            }
+            return JsonObject()
+                .put("runs", runs)
+                .put("failedRuns", failedRuns)
+                .put("lastRun", lastRun)
+                .put("maxTotal", maxTotal)
+                .put("average", average)
+        }
+    }
+
+    // NOTE: cpu time is measured on the runner thread, callbacks of exec calls
+    // that run on the event loop are not included
+    class OwnerUsage {
+
+        private var runs = 0L
+        private var limitReached = 0L
+        private var cpuTime = 0.0
+        private var totalTime = 0.0
+
+        @Synchronized
+        fun record(timings: RunTimings, limitReached: Boolean) {
+            runs++
+            if (limitReached) {
+                this.limitReached++
+            }
+            cpuTime += timings.phaseMillis(PHASE_CPU)
+            totalTime += timings.totalMillis()
+        }
+
+        @Synchronized
+        fun toJson(): JsonObject {
+            return JsonObject()
+                .put("runs", runs)
+                .put("limitReached", limitReached)
+                .put("cpuTime", Math.round(cpuTime * 100) / 100.0)
+                .put("totalTime", Math.round(totalTime * 100) / 100.0)
+        }
     }
 
     class ContinuationWrapper {
@@ -377,10 +559,38 @@ class ScriptRunner(private val daoManager: DaoManager) : CoroutineVerticle() {
 
     }
 
+    class FutureListWrapper(val future: Future<List<Map<String, Any>>>) {
+
+        @Export
+        fun onComplete(v: Value) {
+            future.onComplete {
+                if (!v.canExecute()) {
+                    return@onComplete
+                }
+                if (it.succeeded()) {
+                    val results = it.result().map { r -> ProxyObject.fromMap(r) as Any }
+                    v.execute(ProxyArray.fromList(results.toMutableList()))
+                } else {
+                    v.execute(null, it.cause()?.message ?: "Unknown error")
+                }
+            }
+        }
+
+    }
+
+    class ExecCollection(
+        val id: Long,
+        val parentTree: List<CollectionDb>,
+        val envData: String
+    )
+
+    class ExecRequest(val data: JsonObject, val collection: ExecCollection)
+
     class Exec(
         private val eventBus: EventBus,
         private val ownerGroups: Set<String>,
-        private val scriptRunner: ScriptRunner
+        private val scriptRunner: ScriptRunner,
+        private val timings: RunTimings
     ) {
 
         @Export
@@ -389,6 +599,8 @@ class ScriptRunner(private val daoManager: DaoManager) : CoroutineVerticle() {
             envName: String?
         ): FutureWrapper {
             val promise = Promise.promise<Map<String, Any>>()
+            val execStart = System.nanoTime()
+            promise.future().onComplete { timings.addExec(System.nanoTime() - execStart) }
             val f: CompletableFuture<JsonObject>?
             try {
                 f = scriptRunner.prepareExec(requestId, envName, ownerGroups)
@@ -414,5 +626,99 @@ class ScriptRunner(private val daoManager: DaoManager) : CoroutineVerticle() {
                 }
             return FutureWrapper(promise.future())
         }
+
+        @Export
+        fun execAll(
+            requestIds: Value,
+            envName: String?,
+            concurrency: Int
+        ): FutureListWrapper {
+            val promise = Promise.promise<List<Map<String, Any>>>()
+            val execStart = System.nanoTime()
+            promise.future().onComplete { timings.addExec(System.nanoTime() - execStart) }
+            val f: CompletableFuture<List<JsonObject>>?
+            try {
+                val ids = (0 until requestIds.arraySize).map {
+                    requestIds.getArrayElement(it).asLong()
+                }
+                f = scriptRunner.prepareExecAll(ids, envName, ownerGroups)
+            } catch (e: Exception) {
+                return FutureListWrapper(Future.failedFuture(e))
+            }
+
+            f.orTimeout(30, TimeUnit.SECONDS)
+                .whenComplete { res, err ->
+                    if (err != null) {
+                        f.cancel(true)
+                        promise.fail(err.cause?.message ?: err.message ?: "Unknown error")
+                        return@whenComplete
+                    }
+                    val limit = if (concurrency > 0) concurrency else DEFAULT_EXEC_CONCURRENCY
+                    sendAll(res, limit.coerceAtMost(MAX_EXEC_CONCURRENCY), promise)
+                }
+            return FutureListWrapper(promise.future())
+        }
+
+        // NOTE: at most concurrency requests are in flight, a new one is sent whenever one
+        // finishes. The first failure fails the whole batch like Promise.all
+        private fun sendAll(
+            requests: List<JsonObject>,
+            concurrency: Int,
+            promise: Promise<List<Map<String, Any>>>
+        ) {
+            if (requests.isEmpty()) {
+                promise.complete(emptyList())
+                return
+            }
+            val results = arrayOfNulls<Map<String, Any>>(requests.size)
+            val next = AtomicInteger(0)
+            val remaining = AtomicInteger(requests.size)
+            fun sendNext() {
+                val i = next.getAndIncrement()
+                if (i >= requests.size || promise.future().isComplete) {
+                    return
+                }
+                eventBus.request<JsonObject>("request.send", requests[i]).onComplete {
+                    if (it.failed()) {
+                        promise.tryFail(it.cause())
+                        return@onComplete
+                    }
+                    results[i] = it.result().body().map
+                    if (remaining.decrementAndGet() == 0) {
+                        promise.tryComplete(results.map { r -> r!! })
+                    } else {
+                        sendNext()
+                    }
+                }
+            }
+            repeat(minOf(concurrency, requests.size)) { sendNext() }
+        }
+    }
+
+    companion object {
+
+        const val PHASE_CONTEXT = "contextAcquisition"
+        const val PHASE_RUNTIME_INIT = "runtimeInit"
+        const val PHASE_SCRIPT = "scriptEvaluation"
+        const val PHASE_JASMINE = "jasmineExecution"
+        const val PHASE_CALLBACK = "callback"
+        const val PHASE_REPORT = "reportSerialization"
+        const val PHASE_CPU = "cpu"
+        const val MAX_CACHED_SCRIPTS = 256
+
+        // NOTE: the engine checks that all its contexts use the same filter instance
+        private val SCRIPT_SOURCE_FILTER =
+            Predicate<Source> { ScriptSourceCache.isScriptSource(it) }
+        val PHASES = listOf(
+            PHASE_CONTEXT,
+            PHASE_RUNTIME_INIT,
+            PHASE_SCRIPT,
+            PHASE_JASMINE,
+            PHASE_CALLBACK,
+            PHASE_REPORT
+        )
+        const val MAX_METRICS_SCRIPTS = 1000
+        const val DEFAULT_EXEC_CONCURRENCY = 6
+        const val MAX_EXEC_CONCURRENCY = 32
     }
 }
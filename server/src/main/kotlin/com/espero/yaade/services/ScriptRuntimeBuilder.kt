@@ -1,38 +1,33 @@
 package com.espero.yaade.services
 
 import org.graalvm.polyglot.Context
+import org.graalvm.polyglot.Source
 
 class ScriptRuntimeBuilder {
 
-    private val bundleScript: String
-    private val jasmineScript: String
-    private val boot0Script: String
-    private val boot1Script: String
-
-    init {
-        val bundleStream = javaClass.getResourceAsStream("/bundle.js")
-            ?: throw RuntimeException("bundle.js file not found")
-        bundleScript = bundleStream.bufferedReader().use { it.readText() }
-        val jasmineStream = javaClass.getResourceAsStream("/jasmine.js")
-            ?: throw RuntimeException("jasmine.js file not found")
-        jasmineScript = jasmineStream.bufferedReader().use { it.readText() }
-        val boot0Stream = javaClass.getResourceAsStream("/boot0.js")
-            ?: throw RuntimeException("boot0.js file not found")
-        boot0Script = boot0Stream.bufferedReader().use { it.readText() }
-        val boot1Stream = javaClass.getResourceAsStream("/boot1.js")
-            ?: throw RuntimeException("boot1.js file not found")
-        boot1Script = boot1Stream.bufferedReader().use { it.readText() }
-    }
+    // NOTE: the libraries are loaded once as named sources, so contexts that share an
+    // engine reuse their parsed code instead of parsing them again for every run
+    private val bundleSource: Source = loadSource("bundle.js")
+    private val jasmineSource: Source = loadSource("jasmine.js")
+    private val boot0Source: Source = loadSource("boot0.js")
+    private val boot1Source: Source = loadSource("boot1.js")
 
     fun initRuntime(context: Context) {
         val globalBindings = context.getBindings("js")
         val jasmineGlobalPrototype = globalBindings.getMember("Object")
         val jasmineGlobal = jasmineGlobalPrototype.newInstance()
         context.getBindings("js").putMember("global", jasmineGlobal)
-        context.eval("js", bundleScript)
-        context.eval("js", jasmineScript)
-        context.eval("js", boot0Script)
-        context.eval("js", boot1Script)
+        context.eval(bundleSource)
+        context.eval(jasmineSource)
+        context.eval(boot0Source)
+        context.eval(boot1Source)
+    }
+
+    private fun loadSource(name: String): Source {
+        val stream = javaClass.getResourceAsStream("/$name")
+            ?: throw RuntimeException("$name file not found")
+        val script = stream.bufferedReader().use { it.readText() }
+        return Source.newBuilder("js", script, name).buildLiteral()
     }
 
 }
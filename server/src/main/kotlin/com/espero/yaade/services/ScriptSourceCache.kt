@@ -0,0 +1,43 @@
+package com.espero.yaade.services
+
+import org.graalvm.polyglot.Source
+import java.security.MessageDigest
+
+// NOTE: sources are named by the hash of the script, so runs of the same script get an
+// equal source and the engine can skip parsing and reuse the compiled code
+class ScriptSourceCache(private val maxSize: Int) {
+
+    private val sources = object : LinkedHashMap<String, Source>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Source>): Boolean {
+            return size > maxSize
+        }
+    }
+
+    fun get(script: String): Source {
+        val hash = hash(script)
+        synchronized(sources) {
+            sources[hash]?.let { return it }
+        }
+        // NOTE: the script is wrapped in an async function so it can use await
+        val source = Source.newBuilder("js", "(async function() {\n$script\n})", "$PREFIX$hash.js")
+            .buildLiteral()
+        synchronized(sources) {
+            sources[hash] = source
+        }
+        return source
+    }
+
+    companion object {
+
+        private const val PREFIX = "script-"
+
+        fun isScriptSource(source: Source): Boolean {
+            return source.name.startsWith(PREFIX)
+        }
+
+        private fun hash(script: String): String {
+            val digest = MessageDigest.getInstance("SHA-256").digest(script.toByteArray())
+            return digest.joinToString("") { "%02x".format(it) }
+        }
+    }
+}
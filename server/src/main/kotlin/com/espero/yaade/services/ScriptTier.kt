@@ -0,0 +1,30 @@
+package com.espero.yaade.services
+
+import com.espero.yaade.SCRIPT_RUNNER_TIMEOUT
+import com.espero.yaade.YAADE_SCRIPT_MAX_HEAP_MEMORY
+import com.espero.yaade.YAADE_SCRIPT_STATEMENT_LIMIT
+import com.espero.yaade.YAADE_SCRIPT_STRICT_STATEMENT_LIMIT
+import com.espero.yaade.YAADE_SCRIPT_STRICT_TIMEOUT
+
+// NOTE: scripts that are started with an access token run in the strict tier,
+// scripts started from the UI and cron jobs run in the standard tier.
+// A statement limit of 0 disables the limit
+enum class ScriptTier(
+    val statementLimit: Long,
+    val timeout: Long,
+    val maxHeapMemory: String?
+) {
+    STANDARD(YAADE_SCRIPT_STATEMENT_LIMIT, SCRIPT_RUNNER_TIMEOUT, YAADE_SCRIPT_MAX_HEAP_MEMORY),
+    STRICT(
+        YAADE_SCRIPT_STRICT_STATEMENT_LIMIT,
+        minOf(YAADE_SCRIPT_STRICT_TIMEOUT, SCRIPT_RUNNER_TIMEOUT),
+        YAADE_SCRIPT_MAX_HEAP_MEMORY
+    );
+
+    companion object {
+
+        fun fromName(name: String?): ScriptTier {
+            return entries.find { it.name.equals(name, ignoreCase = true) } ?: STANDARD
+        }
+    }
+}
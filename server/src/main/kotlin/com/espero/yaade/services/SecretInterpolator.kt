@@ -3,48 +3,156 @@ package com.espero.yaade.services;
 import com.espero.yaade.db.DaoManager;
 import io.vertx.core.json.JsonArray
 import io.vertx.core.json.JsonObject;
-import org.apache.commons.text.StringSubstitutor
 
 class SecretInterpolator(private val daoManager: DaoManager) {
 
     fun interpolate(request: JsonObject, collectionId: Long?, envName: String): JsonObject {
         if (collectionId == null)
             return request
+        val template = compile(request) ?: return request
         val secrets: JsonObject =
             daoManager.collectionDao.getSecrets(collectionId, envName) ?: return request
         if (secrets.isEmpty)
             return request
-        val substitutor = StringSubstitutor(secrets.map)
-        return interpolate2(request, substitutor)
-    }
-
-    private fun interpolate2(
-        request: JsonObject,
-        substitutor: StringSubstitutor
-    ): JsonObject {
-        val result = JsonObject()
-        request.forEach {
-            if (it.key == null || it.value == null)
-                return@forEach
-            result.put(it.key, interpolate1(it.value, substitutor))
-        }
+        return render(template, request, secrets)
+    }
+
+    /**
+     * Scans the request once and returns a template that only contains the paths to strings
+     * with secret placeholders, or null if the request does not reference any secret.
+     * A template can be rendered any number of times against requests of the same shape.
+     */
+    fun compile(request: JsonObject): SecretTemplate? {
+        return compileObject(request)
+    }
 
-        return result
+    fun render(template: SecretTemplate, request: JsonObject, secrets: JsonObject): JsonObject {
+        return renderNode(template, request, secrets) as JsonObject
     }
 
-    private fun interpolate1(value: Any, substitutor: StringSubstitutor): Any {
+    private fun compileValue(value: Any?): SecretTemplate? {
         return when (value) {
-            is String -> interpolate0(value, substitutor)
-            is JsonObject -> interpolate2(value, substitutor)
-            is JsonArray -> value.map { interpolate1(it, substitutor) }
+            is String -> compileString(value)
+            is JsonObject -> compileObject(value)
+            is JsonArray -> compileArray(value)
+            else -> null
+        }
+    }
+
+    private fun compileObject(value: JsonObject): SecretTemplate? {
+        var children: MutableMap<String, SecretTemplate>? = null
+        for (entry in value) {
+            val child = compileValue(entry.value) ?: continue
+            if (children == null) children = LinkedHashMap()
+            children[entry.key] = child
+        }
+        return children?.let { ObjectTemplate(it) }
+    }
+
+    private fun compileArray(value: JsonArray): SecretTemplate? {
+        var children: MutableMap<Int, SecretTemplate>? = null
+        for (i in 0 until value.size()) {
+            val child = compileValue(value.getValue(i)) ?: continue
+            if (children == null) children = LinkedHashMap()
+            children[i] = child
+        }
+        return children?.let { ArrayTemplate(it) }
+    }
+
+    private fun compileString(value: String): SecretTemplate? {
+        var start = value.indexOf(PREFIX)
+        if (start == -1)
+            return null
+        val segments = mutableListOf<Segment>()
+        var position = 0
+        while (start != -1) {
+            val end = value.indexOf('}', start + PREFIX.length)
+            if (end == -1)
+                break
+            if (start > position) {
+                segments.add(Literal(value.substring(position, start)))
+            }
+            val expression = value.substring(start + PREFIX.length, end)
+            val defaultIndex = expression.indexOf(DEFAULT_SEPARATOR)
+            segments.add(
+                if (defaultIndex == -1)
+                    Placeholder(expression, null)
+                else
+                    Placeholder(
+                        expression.substring(0, defaultIndex),
+                        expression.substring(defaultIndex + DEFAULT_SEPARATOR.length)
+                    )
+            )
+            position = end + 1
+            start = value.indexOf(PREFIX, position)
+        }
+        if (segments.none { it is Placeholder })
+            return null
+        if (position < value.length) {
+            segments.add(Literal(value.substring(position)))
+        }
+        return StringTemplate(segments)
+    }
+
+    // NOTE: only the objects and arrays on the path to a placeholder are copied,
+    // all other nodes are shared with the original request
+    private fun renderNode(template: SecretTemplate, value: Any?, secrets: JsonObject): Any? {
+        return when {
+            template is StringTemplate && value is String -> renderString(template, secrets)
+            template is ObjectTemplate && value is JsonObject -> {
+                val result = JsonObject(LinkedHashMap(value.map))
+                for ((key, child) in template.children) {
+                    result.put(key, renderNode(child, value.getValue(key), secrets))
+                }
+                result
+            }
+
+            template is ArrayTemplate && value is JsonArray -> {
+                val result = JsonArray(ArrayList(value.list))
+                for ((index, child) in template.children) {
+                    if (index < value.size()) {
+                        result.set(index, renderNode(child, value.getValue(index), secrets))
+                    }
+                }
+                result
+            }
+
             else -> value
         }
     }
 
-    private fun interpolate0(value: String, substitutor: StringSubstitutor): String {
-        if (!value.contains("\$S{"))
-            return value
-        val v = value.replace("\$S{", "\${")
-        return substitutor.replace(v)
+    private fun renderString(template: StringTemplate, secrets: JsonObject): String {
+        val result = StringBuilder()
+        for (segment in template.segments) {
+            when (segment) {
+                is Literal -> result.append(segment.text)
+                is Placeholder -> {
+                    // NOTE: unknown secrets are rendered as a plain variable like before
+                    val secret = secrets.getValue(segment.name)?.toString()
+                    result.append(secret ?: segment.default ?: "\${${segment.name}}")
+                }
+            }
+        }
+        return result.toString()
+    }
+
+    sealed interface SecretTemplate
+
+    private class StringTemplate(val segments: List<Segment>) : SecretTemplate
+
+    private class ObjectTemplate(val children: Map<String, SecretTemplate>) : SecretTemplate
+
+    private class ArrayTemplate(val children: Map<Int, SecretTemplate>) : SecretTemplate
+
+    private sealed interface Segment
+
+    private class Literal(val text: String) : Segment
+
+    private class Placeholder(val name: String, val default: String?) : Segment
+
+    companion object {
+
+        private const val PREFIX = "\$S{"
+        private const val DEFAULT_SEPARATOR = ":-"
     }
 }
@@ -0,0 +1,109 @@
+package com.espero.yaade.services
+
+import io.vertx.core.Vertx
+import io.vertx.core.http.ServerWebSocket
+import io.vertx.core.http.WebSocket
+import java.util.*
+
+// NOTE: multiplexes any number of upstream sockets over one browser socket. Every upstream
+// socket is a channel with its own relay and counters. The browser socket is shared, so when
+// its write queue is full all channels are paused until it is drained.
+// Only accessed from the event loop of the browser socket
+class WebsocketMultiplexer(
+    private val vertx: Vertx,
+    private val client: ServerWebSocket,
+    private val maxQueueSize: Int,
+    private val dropOnOverflow: Boolean,
+    private val maxChannels: Int
+) {
+
+    private val channels = LinkedHashMap<String, WebsocketRelay>()
+    private val drainHandlers = ArrayList<() -> Unit>()
+    private var paused = false
+
+    init {
+        client.setWriteQueueMaxSize(maxQueueSize)
+        client.drainHandler {
+            if (paused) {
+                paused = false
+                channels.values.forEach { it.resume() }
+            }
+            val handlers = drainHandlers.toList()
+            drainHandlers.clear()
+            handlers.forEach { it() }
+        }
+    }
+
+    fun canOpen(): Boolean {
+        return channels.size < maxChannels
+    }
+
+    fun open(
+        upstream: WebSocket,
+        batchWindow: Long,
+        recording: WebsocketRecording?,
+        onClose: (WebsocketRelay) -> Unit
+    ): WebsocketRelay {
+        val channelId = UUID.randomUUID().toString()
+        val relay = WebsocketRelay(
+            channelId, vertx, this, client, upstream, maxQueueSize, batchWindow, recording
+        )
+        channels[channelId] = relay
+        upstream.closeHandler {
+            relay.onUpstreamClosed()
+            if (channels.remove(channelId, relay)) {
+                onClose(relay)
+            }
+        }
+        relay.start()
+        if (paused) {
+            relay.pause()
+        }
+        return relay
+    }
+
+    fun get(channelId: String?): WebsocketRelay? {
+        // NOTE: clients that only use one channel do not need to send the channel id
+        if (channelId == null) {
+            return channels.values.singleOrNull()
+        }
+        return channels[channelId]
+    }
+
+    fun close(channelId: String?): Boolean {
+        val relay = get(channelId) ?: return false
+        channels.remove(relay.channelId)
+        relay.close()
+        return true
+    }
+
+    fun closeAll() {
+        val relays = channels.values.toList()
+        channels.clear()
+        relays.forEach { it.close() }
+    }
+
+    fun channelIds(): List<String> {
+        return channels.keys.toList()
+    }
+
+    fun isClientWritable(): Boolean {
+        return !client.writeQueueFull()
+    }
+
+    fun onClientDrain(handler: () -> Unit) {
+        drainHandlers.add(handler)
+    }
+
+    // NOTE: returns false if the frame should be dropped
+    fun beforeClientWrite(): Boolean {
+        return !(dropOnOverflow && client.writeQueueFull())
+    }
+
+    fun afterClientWrite() {
+        if (!dropOnOverflow && !paused && client.writeQueueFull()) {
+            paused = true
+            channels.values.forEach { it.pause() }
+        }
+    }
+}
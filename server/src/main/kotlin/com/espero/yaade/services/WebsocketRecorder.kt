@@ -0,0 +1,117 @@
+package com.espero.yaade.services
+
+import com.espero.yaade.YAADE_WS_RECORDING_PATH
+import com.espero.yaade.db.DaoManager
+import com.espero.yaade.model.db.WebsocketRecordingDb
+import io.vertx.core.eventbus.Message
+import io.vertx.core.impl.logging.LoggerFactory
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import io.vertx.kotlin.coroutines.CoroutineVerticle
+import java.io.BufferedWriter
+import java.io.FileOutputStream
+import java.io.OutputStreamWriter
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.zip.GZIPOutputStream
+
+// NOTE: this verticle is deployed as a worker, so writing recordings never blocks the relay.
+// Frames arrive in batches from WebsocketRecording and are appended as json lines to a gzip
+// file per recording. Every batch is sync flushed, so an unfinished recording is readable
+class WebsocketRecorder(private val daoManager: DaoManager) : CoroutineVerticle() {
+
+    private val log = LoggerFactory.getLogger(WebsocketRecorder::class.java)
+
+    private val writers = HashMap<Long, BufferedWriter>()
+
+    // NOTE: recordings that finished while a backup was imported are updated afterwards,
+    // the current database is about to be replaced
+    private val pendingFinishes = LinkedHashMap<Long, JsonObject>()
+    private var timerId = -1L
+
+    public override suspend fun start() {
+        Files.createDirectories(Paths.get(YAADE_WS_RECORDING_PATH))
+        vertx.eventBus().consumer(ADDRESS, this::record)
+        timerId = vertx.setPeriodic(FINISH_RETRY_INTERVAL) { finishPending() }
+    }
+
+    private fun record(msg: Message<JsonObject>) {
+        val body = msg.body()
+        val recordingId = body.getLong("recordingId") ?: return
+        val fileName = body.getString("fileName") ?: return
+        try {
+            val frames = body.getJsonArray("frames", JsonArray())
+            if (!frames.isEmpty) {
+                val writer = writers.getOrPut(recordingId) { openWriter(fileName) }
+                frames.forEach {
+                    writer.write((it as JsonObject).encode())
+                    writer.newLine()
+                }
+                writer.flush()
+            }
+            if (body.getBoolean("finished", false)) {
+                writers.remove(recordingId)?.close()
+                if (daoManager.isRestoring()) {
+                    pendingFinishes[recordingId] = body
+                } else {
+                    finish(recordingId, body)
+                }
+            }
+        } catch (e: Throwable) {
+            log.error("Failed to write websocket recording $recordingId", e)
+            writers.remove(recordingId)?.close()
+        }
+    }
+
+    private fun openWriter(fileName: String): BufferedWriter {
+        val out = GZIPOutputStream(FileOutputStream(path(fileName).toFile(), true), true)
+        return BufferedWriter(OutputStreamWriter(out, Charsets.UTF_8))
+    }
+
+    private fun finishPending() {
+        if (pendingFinishes.isEmpty() || daoManager.isRestoring()) {
+            return
+        }
+        val pending = pendingFinishes.entries.toList()
+        pendingFinishes.clear()
+        for ((recordingId, body) in pending) {
+            try {
+                finish(recordingId, body)
+            } catch (e: Throwable) {
+                log.error("Failed to finish websocket recording $recordingId", e)
+            }
+        }
+    }
+
+    private fun finish(recordingId: Long, body: JsonObject) {
+        val recording = daoManager.websocketRecordingDao.getById(recordingId) ?: return
+        recording.frames = body.getLong("framesTotal", 0)
+        recording.size = body.getLong("size", 0)
+        recording.dropped = body.getLong("dropped", 0)
+        recording.truncated = body.getBoolean("truncated", false)
+        recording.finished = true
+        daoManager.websocketRecordingDao.update(recording)
+    }
+
+    public override suspend fun stop() {
+        vertx.cancelTimer(timerId)
+        finishPending()
+        writers.values.forEach { it.close() }
+        writers.clear()
+    }
+
+    companion object {
+
+        const val ADDRESS = "ws.record"
+        const val FINISH_RETRY_INTERVAL = 1000L
+
+        fun path(fileName: String): Path {
+            return Paths.get(YAADE_WS_RECORDING_PATH, fileName)
+        }
+
+        fun path(recording: WebsocketRecordingDb): Path {
+            return path(recording.recordingFileName())
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.espero.yaade.services
+
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+
+// NOTE: collects the frames of one relayed socket and sends them in batches to the
+// WebsocketRecorder. Only the payload size counts towards maxSize, when it is reached the
+// recording stops and is marked as truncated. Frames that do not fit into the buffer until
+// the next flush are dropped and counted.
+// Only accessed from the event loop of the browser socket
+class WebsocketRecording(
+    private val vertx: Vertx,
+    val recordingId: Long,
+    private val fileName: String,
+    private val maxSize: Long
+) {
+
+    private var buffer = JsonArray()
+    private var frames = 0L
+    private var size = 0L
+    private var dropped = 0L
+    private var truncated = false
+    private var closed = false
+    private var timerId = -1L
+
+    fun record(direction: String, message: String, binary: Boolean) {
+        if (closed || truncated) {
+            return
+        }
+        if (size + message.length > maxSize) {
+            truncated = true
+            return
+        }
+        if (buffer.size() >= MAX_BUFFERED_FRAMES) {
+            dropped++
+            return
+        }
+        frames++
+        size += message.length
+        buffer.add(
+            JsonObject()
+                .put("t", System.currentTimeMillis())
+                .put("d", direction)
+                .put("b", binary)
+                .put("m", message)
+        )
+        if (timerId == -1L) {
+            timerId = vertx.setTimer(FLUSH_INTERVAL) {
+                timerId = -1L
+                flush(false)
+            }
+        }
+    }
+
+    fun close() {
+        if (closed) {
+            return
+        }
+        closed = true
+        if (timerId != -1L) {
+            vertx.cancelTimer(timerId)
+            timerId = -1L
+        }
+        flush(true)
+    }
+
+    private fun flush(finished: Boolean) {
+        if (buffer.isEmpty && !finished) {
+            return
+        }
+        val message = JsonObject()
+            .put("recordingId", recordingId)
+            .put("fileName", fileName)
+            .put("frames", buffer)
+        buffer = JsonArray()
+        if (finished) {
+            message
+                .put("finished", true)
+                .put("framesTotal", frames)
+                .put("size", size)
+                .put("dropped", dropped)
+                .put("truncated", truncated)
+        }
+        vertx.eventBus().send(WebsocketRecorder.ADDRESS, message)
+    }
+
+    companion object {
+
+        const val FLUSH_INTERVAL = 200L
+        const val MAX_BUFFERED_FRAMES = 10_000
+    }
+}
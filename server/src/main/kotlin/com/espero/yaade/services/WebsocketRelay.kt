@@ -0,0 +1,236 @@
+package com.espero.yaade.services
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder
+import io.vertx.core.Future
+import io.vertx.core.Vertx
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.http.ServerWebSocket
+import io.vertx.core.http.WebSocket
+import io.vertx.core.json.JsonObject
+import java.util.*
+
+// NOTE: relays frames between the browser socket and one upstream socket. Binary frames are
+// sent to the browser base64 encoded inside the json envelope. Writes to an upstream socket
+// with a full write queue are rejected, so a slow channel does not block the other channels
+// of the browser socket.
+// Envelopes are written as pre-encoded strings, only the payload is escaped. With a batch
+// window, frames that arrive within the window are sent to the browser in one envelope
+class WebsocketRelay(
+    val channelId: String,
+    private val vertx: Vertx,
+    private val multiplexer: WebsocketMultiplexer,
+    private val client: ServerWebSocket,
+    private val upstream: WebSocket,
+    private val maxQueueSize: Int,
+    private val batchWindow: Long,
+    val recording: WebsocketRecording?
+) {
+
+    private val envelopePrefix =
+        "{\"type\":\"ws-read\",\"result\":{\"wsId\":\"$channelId\",\"message\":"
+    private val batchPrefix =
+        "{\"type\":\"ws-read-batch\",\"result\":{\"wsId\":\"$channelId\",\"messages\":["
+    private var batch: StringBuilder? = null
+    private var batchFrames = 0
+    private var batchTimerId = -1L
+    private val openedAt = System.currentTimeMillis()
+    private var currentSecond = 0L
+    private var framesInSecond = 0L
+    private var bytesInSecond = 0L
+    private var framesLastSecond = 0L
+    private var bytesLastSecond = 0L
+    private var envelopesSent = 0L
+    private var envelopeBytes = 0L
+
+    private var framesReceived = 0L
+    private var framesSent = 0L
+    private var bytesReceived = 0L
+    private var bytesSent = 0L
+    private var droppedFrames = 0L
+    private var rejectedWrites = 0L
+    private var pauses = 0L
+
+    fun start() {
+        upstream.setWriteQueueMaxSize(maxQueueSize)
+        upstream.textMessageHandler { relayToClient(it, it.length, false) }
+        upstream.binaryMessageHandler {
+            relayToClient(Base64.getEncoder().encodeToString(it.bytes), it.length(), true)
+        }
+    }
+
+    fun write(message: String, binary: Boolean): Future<Void> {
+        if (upstream.isClosed) {
+            return Future.failedFuture("WebSocket is closed")
+        }
+        if (upstream.writeQueueFull()) {
+            rejectedWrites++
+            return Future.failedFuture("WebSocket is busy")
+        }
+        // NOTE: binary payloads are sent base64 encoded by the client
+        val bytes = if (binary) {
+            try {
+                Base64.getDecoder().decode(message)
+            } catch (e: IllegalArgumentException) {
+                return Future.failedFuture("Invalid base64 payload")
+            }
+        } else {
+            null
+        }
+        framesSent++
+        recording?.record("out", message, binary)
+        return if (bytes != null) {
+            val buffer = Buffer.buffer(bytes)
+            bytesSent += buffer.length()
+            upstream.writeBinaryMessage(buffer)
+        } else {
+            bytesSent += message.length
+            upstream.writeTextMessage(message)
+        }
+    }
+
+    fun isWritable(): Boolean {
+        return !upstream.isClosed && !upstream.writeQueueFull()
+    }
+
+    fun onDrain(handler: () -> Unit) {
+        upstream.drainHandler { handler() }
+    }
+
+    fun pause() {
+        pauses++
+        upstream.pause()
+    }
+
+    fun resume() {
+        upstream.resume()
+    }
+
+    fun close() {
+        flushBatch()
+        upstream.close()
+    }
+
+    fun onUpstreamClosed() {
+        flushBatch()
+        recording?.close()
+    }
+
+    fun stats(): JsonObject {
+        return JsonObject()
+            .put("wsId", channelId)
+            .put("framesReceived", framesReceived)
+            .put("framesSent", framesSent)
+            .put("bytesReceived", bytesReceived)
+            .put("bytesSent", bytesSent)
+            .put("droppedFrames", droppedFrames)
+            .put("rejectedWrites", rejectedWrites)
+            .put("pauses", pauses)
+            .put("batchWindow", batchWindow)
+            .put("recordingId", recording?.recordingId)
+            .put("envelopesSent", envelopesSent)
+            .put("envelopeBytes", envelopeBytes)
+            .put("framesPerSecond", lastCompleteSecond(framesInSecond, framesLastSecond))
+            .put("bytesPerSecond", lastCompleteSecond(bytesInSecond, bytesLastSecond))
+            .put("averageFramesPerSecond", framesReceived * 1000.0 / uptime())
+            .put("averageBytesPerSecond", bytesReceived * 1000.0 / uptime())
+    }
+
+    private fun relayToClient(message: String, size: Int, binary: Boolean) {
+        framesReceived++
+        bytesReceived += size
+        countThroughput(size)
+        recording?.record("in", message, binary)
+        if (client.isClosed) {
+            return
+        }
+        if (!multiplexer.beforeClientWrite()) {
+            droppedFrames++
+            return
+        }
+        if (batchWindow <= 0) {
+            val envelope = StringBuilder(envelopePrefix.length + message.length + 32)
+                .append(envelopePrefix)
+            appendMessage(envelope, message, binary)
+            writeToClient(envelope.append("}}").toString())
+            return
+        }
+        val current = batch ?: StringBuilder(batchPrefix).also {
+            batch = it
+            batchTimerId = vertx.setTimer(batchWindow) { flushBatch() }
+        }
+        if (batchFrames > 0) {
+            current.append(',')
+        }
+        current.append("{\"message\":")
+        appendMessage(current, message, binary)
+        current.append('}')
+        batchFrames++
+        if (batchFrames >= MAX_BATCH_FRAMES || current.length >= MAX_BATCH_SIZE) {
+            vertx.cancelTimer(batchTimerId)
+            flushBatch()
+        }
+    }
+
+    private fun appendMessage(envelope: StringBuilder, message: String, binary: Boolean) {
+        envelope.append('"')
+        JsonStringEncoder.getInstance().quoteAsString(message, envelope)
+        envelope.append('"')
+        if (binary) {
+            envelope.append(",\"binary\":true")
+        }
+    }
+
+    private fun flushBatch() {
+        val current = batch ?: return
+        batch = null
+        batchFrames = 0
+        if (client.isClosed) {
+            return
+        }
+        writeToClient(current.append("]}}").toString())
+    }
+
+    private fun writeToClient(envelope: String) {
+        envelopesSent++
+        envelopeBytes += envelope.length
+        client.writeTextMessage(envelope)
+        multiplexer.afterClientWrite()
+    }
+
+    // NOTE: the frames per second are counted in whole seconds, the stats report the
+    // last complete second
+    private fun countThroughput(size: Int) {
+        val second = second()
+        if (second != currentSecond) {
+            framesLastSecond = if (second == currentSecond + 1) framesInSecond else 0
+            bytesLastSecond = if (second == currentSecond + 1) bytesInSecond else 0
+            currentSecond = second
+            framesInSecond = 0
+            bytesInSecond = 0
+        }
+        framesInSecond++
+        bytesInSecond += size
+    }
+
+    private fun lastCompleteSecond(inSecond: Long, lastSecond: Long): Long {
+        return when (second()) {
+            currentSecond -> lastSecond
+            currentSecond + 1 -> inSecond
+            else -> 0
+        }
+    }
+
+    private fun second(): Long {
+        return System.currentTimeMillis() / 1000
+    }
+
+    private fun uptime(): Long {
+        return maxOf(System.currentTimeMillis() - openedAt, 1)
+    }
+
+    companion object {
+
+        const val MAX_BATCH_FRAMES = 1000
+        const val MAX_BATCH_SIZE = 256 * 1024
+    }
+}
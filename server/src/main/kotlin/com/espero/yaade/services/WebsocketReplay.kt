@@ -0,0 +1,85 @@
+package com.espero.yaade.services
+
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonObject
+
+// NOTE: sends recorded frames with their original spacing divided by speed. A speed of 0
+// sends the frames as fast as the target can take them. If the target can not keep up the
+// replay waits for it, the delay is reported as lag.
+// Only accessed from the event loop of the browser socket
+class WebsocketReplay(
+    private val vertx: Vertx,
+    val replayId: String,
+    private val frames: List<JsonObject>,
+    private val speed: Double,
+    private val target: Target,
+    private val onDone: (JsonObject) -> Unit
+) {
+
+    interface Target {
+
+        fun isWritable(): Boolean
+
+        fun onDrain(handler: () -> Unit)
+
+        fun send(message: String, binary: Boolean)
+    }
+
+    private var index = 0
+    private var startedAt = 0L
+    private var maxLag = 0L
+    private var timerId = -1L
+    private var finished = false
+
+    fun start() {
+        startedAt = System.currentTimeMillis()
+        next()
+    }
+
+    fun cancel() {
+        if (timerId != -1L) {
+            vertx.cancelTimer(timerId)
+        }
+        finish("cancelled")
+    }
+
+    private fun next() {
+        timerId = -1L
+        val firstTime = frames.firstOrNull()?.getLong("t") ?: 0
+        while (!finished && index < frames.size) {
+            val frame = frames[index]
+            val delay = if (speed > 0) {
+                val due = startedAt + ((frame.getLong("t", firstTime) - firstTime) / speed).toLong()
+                due - System.currentTimeMillis()
+            } else 0
+            if (delay > 0) {
+                timerId = vertx.setTimer(delay) { next() }
+                return
+            }
+            if (!target.isWritable()) {
+                target.onDrain { next() }
+                return
+            }
+            maxLag = maxOf(maxLag, -delay)
+            target.send(frame.getString("m", ""), frame.getBoolean("b", false))
+            index++
+        }
+        finish("success")
+    }
+
+    private fun finish(status: String) {
+        if (finished) {
+            return
+        }
+        finished = true
+        onDone(
+            JsonObject()
+                .put("status", status)
+                .put("wsId", replayId)
+                .put("framesSent", index)
+                .put("framesTotal", frames.size)
+                .put("duration", System.currentTimeMillis() - startedAt)
+                .put("maxLag", maxLag)
+        )
+    }
+}
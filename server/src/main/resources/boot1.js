@@ -35,7 +35,8 @@ WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 
 (function() {
   const env = jasmine.getEnv();
-  env.addReporter(jsApiReporter);
+  // NOTE: results are pushed to the host by the reporter that is registered in index.js
+  // env.addReporter(jsApiReporter);
 
   //TODO: GRAALVM: Commented everything else because this assumes the tests are Browser, or Node.js, based.
 
@@ -1,4 +1,3 @@
-const __internalLogs = [];
 let __internalError = null;
 console = null;
 let __callback = function() {}
@@ -16,18 +15,16 @@ async function __doCallback(resString) {
     }
 }
 
-function __getInternalLogs() {
-    return JSON.stringify(__internalLogs);
-}
-
 function log(...messages) {
-    const time = Date.now();
-    __internalLogs.push({
-        time,
-        message: messages?.join(' ')
-    });
+    __reporter.log(Date.now(), messages?.join(' '));
 }
 
+jasmine.getEnv().addReporter({
+    suiteStarted: (result) => __reporter.suiteStarted(result),
+    suiteDone: (result) => __reporter.suiteDone(result),
+    specDone: (result) => __reporter.specDone(result)
+});
+
 async function exec(requestId, envName) {
     return new Promise((resolve, reject) => {
         __exec.exec(requestId, envName).onComplete((result, error) => {
@@ -40,15 +37,28 @@ async function exec(requestId, envName) {
     });
 }
 
-(async function() {
+async function execAll(requestIds, envName, options) {
+    return new Promise((resolve, reject) => {
+        __exec.execAll(requestIds, envName, options?.concurrency ?? 0).onComplete((results, error) => {
+              if (error) {
+                  reject(error);
+              } else {
+                  resolve(Array.from(results));
+              }
+          });
+    });
+}
+
+// NOTE: the script is compiled separately into an async function, so the parsed
+// script can be cached and reused across runs
+async function __run(script) {
 try {
-    // ------- THE SCRIPT -------
-    %s
-    // --------------------------
+    await script();
+    __timings.markScriptEvaluated();
     await jasmine.getEnv().execute();
 } catch (e) {
     __internalError = e.message;
 } finally {
     __continuation.resume();
 }
-})();
+}